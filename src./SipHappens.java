@@ -1,179 +1,918 @@
+import com.sun.net.httpserver.HttpServer;
 import java.util.*;
-import java.text.NumberFormat;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 import java.util.stream.Collectors;
 import java.util.Locale;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 public class SipHappens {
 
-    public static void main(String[] args) {
-        Scanner scanner = new Scanner(System.in);
-        MoodAnalyzer analyzer = new MoodAnalyzer();
+    /**
+     * Runs the café on the console by default.
+     * {@code --batch [file]} replays commands from a file (or stdin) with pauses and banners off,
+     * printing one tab-separated result line per checked-out order.
+     * {@code --stations Coffee=3,Smoothie=1} sets how many brewing stations each drink type gets.
+     * {@code --serve [port]} serves one session per TCP connection instead, and
+     * {@code --connect [host:]port} is a tiny netcat-style client for trying it out.
+     * Checked-out orders are appended to {@code sip-happens.journal}; change it with
+     * {@code --journal <file>} or turn it off with {@code --no-journal}.
+     * Drinks come from {@code catalog.txt} (or {@code --catalog <file>}) when it exists, and the
+     * file is watched so edits go live without a restart; otherwise the built-in drinks are used.
+     * {@code --stock <file>} tracks ingredient portions ({@code oat milk = 40} per line).
+     * {@code --promos <file>} turns on happy hours, bundles, a mood of the day and loyalty tiers.
+     * Metrics are always on over JMX; {@code --metrics [port]} also serves them over HTTP.
+     * {@code --load customers=16,rate=200,seconds=30} simulates customers in-process and reports
+     * throughput, latency and GC; its orders are only journaled when {@code --journal} is given.
+     * {@code --printer <file>} appends a copy of every receipt to a file.
+     * {@code --branch name:port} lets a head office reach this café, and
+     * {@code --coordinator north=7101,south=7102} is that head office.
+     * {@code --fast} is kiosk start-up: catalog from {@code catalog.snap} (or {@code --snapshot <file>})
+     * when there is one, no banner pause or opening menu, and the time to the first prompt on stderr.
+     * {@code --write-snapshot <file>} compiles the catalog into such a snapshot and exits.
+     * {@code --bench [baseline]} runs the hot-path benchmarks against {@code bench-baseline.txt}.
+     * {@code --selfcheck [budgets]} fails when allocation or p99 latency is over {@code selfcheck-budgets.txt}.
+     */
+    public static void main(String[] args) throws IOException {
+        StartupClock.mainEntered();
+        boolean headless = false;
+        boolean fast = false;
+        String snapshotFile = CatalogSnapshot.DEFAULT_FILE;
+        String writeSnapshot = null;
+        String batchFile = null;
+        String journalFile = OrderJournal.DEFAULT_FILE;
+        String catalogFile = CatalogStore.DEFAULT_FILE;
+        String stockFile = null;
+        String promosFile = null;
+        String printerFile = null;
+        String branchSpec = null;
+        String coordinatorSpec = null;
+        int metricsPort = -1;
+        String loadSpec = null;
+        boolean journalChosen = false;
+        int port = -1;
+        boolean bench = false;
+        boolean writeBaseline = false;
+        String baselineFile = CafeBench.DEFAULT_BASELINE;
+        String budgetsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--batch")) {
+                headless = true;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) batchFile = args[++i];
+            } else if (args[i].equals("--stations") && i + 1 < args.length) {
+                BrewScheduler.shared().configure(args[++i]);
+            } else if (args[i].equals("--serve")) {
+                port = CafeServer.DEFAULT_PORT;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--journal") && i + 1 < args.length) {
+                journalFile = args[++i];
+                journalChosen = true;
+            } else if (args[i].equals("--catalog") && i + 1 < args.length) {
+                catalogFile = args[++i];
+            } else if (args[i].equals("--stock") && i + 1 < args.length) {
+                stockFile = args[++i];
+            } else if (args[i].equals("--promos") && i + 1 < args.length) {
+                promosFile = args[++i];
+            } else if (args[i].equals("--printer") && i + 1 < args.length) {
+                printerFile = args[++i];
+            } else if (args[i].equals("--branch") && i + 1 < args.length) {
+                branchSpec = args[++i];
+            } else if (args[i].equals("--coordinator") && i + 1 < args.length) {
+                coordinatorSpec = args[++i];
+            } else if (args[i].equals("--metrics")) {
+                metricsPort = CafeMetrics.DEFAULT_PORT;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) metricsPort = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--no-journal")) {
+                journalFile = null;
+            } else if (args[i].equals("--bench")) {
+                bench = true;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) baselineFile = args[++i];
+            } else if (args[i].equals("--selfcheck")) {
+                budgetsFile = CafeSelfCheck.DEFAULT_BUDGETS;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) budgetsFile = args[++i];
+            } else if (args[i].equals("--load")) {
+                loadSpec = "";
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) loadSpec = args[++i];
+            } else if (args[i].equals("--fast")) {
+                fast = true;
+            } else if (args[i].equals("--snapshot") && i + 1 < args.length) {
+                snapshotFile = args[++i];
+            } else if (args[i].equals("--write-snapshot") && i + 1 < args.length) {
+                writeSnapshot = args[++i];
+            } else if (args[i].equals("--write-baseline")) {
+                writeBaseline = true;
+            } else if (args[i].equals("--connect")) {
+                String target = i + 1 < args.length ? args[++i] : String.valueOf(CafeServer.DEFAULT_PORT);
+                CafeServer.connect(target);
+                return;
+            }
+        }
+
+        CatalogStore catalog = null;
+        if (bench || budgetsFile != null) {
+            catalog = new CatalogStore(Catalog.builtIn());
+        } else if (fast && writeSnapshot == null) {
+            catalog = CatalogSnapshot.open(Paths.get(snapshotFile), Paths.get(catalogFile)); // nothing to watch
+        }
+        if (catalog == null) {
+            catalog = CatalogStore.open(Paths.get(catalogFile));
+            if (!headless && loadSpec == null && writeSnapshot == null) catalog.watch();
+        }
+        if (writeSnapshot != null) {
+            CatalogSnapshot.write(catalog.current(), Paths.get(writeSnapshot));
+            System.out.println("Wrote " + catalog.current().size() + " drinks to " + writeSnapshot);
+            return;
+        }
+        MoodAnalyzer analyzer = new MoodAnalyzer(catalog);
         Menu menu = new Menu(analyzer); // uses same keys as MoodAnalyzer
-        Order order = new Order(menu);
+        if (bench) {
+            Cafe benchCafe = new Cafe(analyzer, menu, null);
+            boolean ok = new CafeBench(benchCafe).run(System.out, Paths.get(baselineFile), writeBaseline);
+            if (!ok) System.exit(1);
+            return;
+        }
+        if (budgetsFile != null) {
+            Cafe checkCafe = new Cafe(analyzer, menu, null);
+            if (!new CafeSelfCheck(checkCafe).run(System.out, Paths.get(budgetsFile))) System.exit(1);
+            return;
+        }
+        if (coordinatorSpec != null) {
+            new BranchCoordinator(menu, analyzer, coordinatorSpec).run(new Scanner(System.in), System.out);
+            return;
+        }
+        if (loadSpec != null && !journalChosen) journalFile = null; // keep test orders out of the real sales
+        OrderJournal journal = journalFile == null ? null : OrderJournal.open(Paths.get(journalFile));
+        if (journal != null) {
+            if (journal.getTruncatedBytes() > 0) {
+                System.err.println("Order journal " + journal.getPath() + ": dropped a torn tail of " + journal.getTruncatedBytes() + " bytes");
+            }
+        }
+        Inventory inventory = stockFile == null ? null : Inventory.load(Paths.get(stockFile), catalog);
+        BaristaQueue kitchen = loadSpec == null ? new BaristaQueue(catalog) : null; // load tests would queue days of drinks
+        CustomerHistory history = null;
+        if (loadSpec == null) {
+            history = new CustomerHistory(catalog);
+            CustomerHistory warming = history;
+            Runnable warm = () -> {
+                try {
+                    warming.warmFrom(journal);
+                } catch (IOException e) {
+                    System.err.println("Could not read regulars from " + journal.getPath() + ": " + e.getMessage());
+                }
+            };
+            if (journal != null && fast) {
+                // Regulars' usuals can fill in while the first customer reads the prompt
+                Thread t = new Thread(warm, "history-warm");
+                t.setDaemon(true);
+                t.start();
+            } else if (journal != null) {
+                warm.run();
+            }
+        }
+        PricingEngine pricing = promosFile == null ? null : PricingEngine.load(Paths.get(promosFile), catalog, history);
+        Cafe cafe = new Cafe(analyzer, menu, journal, inventory, kitchen, history, pricing);
 
-        printHeader();
-        sleepShort();
+        OrderEventBus bus = OrderEventBus.shared();
+        bus.subscribe("metrics", (e, endOfBatch) -> CafeMetrics.shared().onEvent(e));
+        bus.subscribe("kitchen", KitchenDisplay.shared());
+        if (journal != null) {
+            bus.subscribe("journal", (e, endOfBatch) -> {
+                if (e.kind == OrderEventBus.Kind.CHECKED_OUT) journal.append(e);
+            });
+        }
+        if (printerFile != null) bus.subscribe("printer", new ReceiptPrinter(Paths.get(printerFile), menu));
+        bus.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            bus.close(); // drain first so the journal gets every order
+            if (journal != null) journal.close();
+        }, "cafe-close"));
+        if (fast) {
+            // Bringing up JMX costs more than the rest of startup; do it off the critical path
+            Thread t = new Thread(CafeMetrics.shared()::registerMBean, "metrics-jmx");
+            t.setDaemon(true);
+            t.start();
+        } else {
+            CafeMetrics.shared().registerMBean();
+        }
+        if (metricsPort >= 0) CafeMetrics.shared().serveHttp(metricsPort);
+        if (branchSpec != null) BranchNode.parse(branchSpec, cafe).start();
 
-        System.out.println("Welcome! This is Full Café Mode — the menu is always available. 🍃✨");
-        System.out.println("Type a drink name to add it to cart, or use commands listed below.");
-        System.out.println();
-        printHelp();
+        if (loadSpec != null) {
+            try {
+                new CafeLoad(cafe).configure(loadSpec).run(System.out);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (port >= 0) {
+            new CafeServer(port, cafe).serve();
+        } else if (headless) {
+            // Batch/replay: no pauses, no banner, one result line per order on stdout
+            Drink.setBrewMillis(0);
+            Scanner in = batchFile != null
+                    ? new Scanner(Paths.get(batchFile), StandardCharsets.UTF_8)
+                    : new Scanner(System.in);
+            PrintStream silent = new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+            new CafeSession(cafe, in, silent, System.out).run();
+            in.close();
+        } else {
+            Scanner in = new Scanner(System.in);
+            new CafeSession(cafe, in, System.out, null).quickStart(fast).run();
+            in.close();
+        }
+    }
+}
 
-        // show menu at start
-        System.out.println();
-        menu.printMenu();
+/**
+ * Everything the sessions share: one read-only menu and mood analyzer, the order journal, the
+ * ingredient inventory, the barista queue, customer history and promotions (each null when
+ * switched off).
+ */
+class Cafe {
+    private final MoodAnalyzer analyzer;
+    private final Menu menu;
+    private final OrderJournal journal;
+    private final Inventory inventory;
+    private final BaristaQueue kitchen;
+    private final CustomerHistory history;
+    private final PricingEngine pricing;
+    private final Map<String, SharedCart> tabs = new ConcurrentHashMap<>(); // open group tabs by lower-case name
 
-        while (true) {
-            System.out.print("\nYour sip choice: ");
-            String input = scanner.nextLine().trim();
+    Cafe(MoodAnalyzer analyzer, Menu menu, OrderJournal journal) {
+        this(analyzer, menu, journal, null, null, null, null);
+    }
 
-            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
-                goodbye();
-                break;
-            } else if (input.equalsIgnoreCase("help")) {
-                printHelp();
-            } else if (input.equalsIgnoreCase("menu")) {
-                menu.printMenu();
-            } else if (input.equalsIgnoreCase("cart")) {
-                order.printCart();
-            } else if (input.equalsIgnoreCase("checkout")) {
-                if (order.isEmpty()) {
-                    System.out.println("\nYour cart is empty. Add a drink first ✨");
+    Cafe(MoodAnalyzer analyzer, Menu menu, OrderJournal journal, Inventory inventory, BaristaQueue kitchen,
+         CustomerHistory history, PricingEngine pricing) {
+        this.analyzer = analyzer;
+        this.menu = menu;
+        this.journal = journal;
+        this.inventory = inventory;
+        this.kitchen = kitchen;
+        this.history = history;
+        this.pricing = pricing;
+    }
+
+    public MoodAnalyzer getAnalyzer() { return analyzer; }
+    public Menu getMenu() { return menu; }
+    public OrderJournal getJournal() { return journal; }
+    public Inventory getInventory() { return inventory; }
+    public BaristaQueue getKitchen() { return kitchen; }
+    public CustomerHistory getHistory() { return history; }
+    public PricingEngine getPricing() { return pricing; }
+
+    public Order newOrder() { return new Order(menu, inventory, kitchen, pricing); }
+
+    // The tab with this name, started if there isn't one
+    public SharedCart joinTab(String name) {
+        return tabs.compute(name.toLowerCase(Locale.ROOT), (k, t) -> t == null || t.isSettled() ? new SharedCart(name, menu) : t);
+    }
+
+    // Once a tab has been paid in full; a tab with lines put back stays
+    public void forgetTab(SharedCart tab) {
+        tabs.remove(tab.getName().toLowerCase(Locale.ROOT), tab);
+    }
+}
+
+/**
+ * One customer conversation: the command loop and its follow-up questions, reading from
+ * {@code in} and writing to {@code out}. Each console, batch replay or network connection
+ * gets its own session and Order; the Menu and MoodAnalyzer are shared and read-only. A group
+ * tab ({@code tab <name>}) is the one cart sessions share; see SharedCart.
+ */
+class CafeSession {
+    private static final int SETTLE_WAIT_ATTEMPTS = 50; // x 0.1 ms for another member's checkout to finish
+
+    private final Cafe cafe;
+    private final Menu menu;
+    private final MoodAnalyzer analyzer;
+    private final Scanner in;
+    private final PrintStream out;
+    private final PrintStream results; // batch mode result lines; null when interactive
+    private final boolean headless;
+    private boolean quickStart; // kiosk: straight to the prompt, menu on request
+    private Order order;
+    private SharedCart tab; // the group tab this customer adds to, or null for their own cart
+    private BaristaQueue.Ticket lastTicket; // this customer's most recent order in the drink line
+    private String customer;                // known once they say their name or check out
+    private final List<String> orderMoods = new ArrayList<>();
+    private final List<CompletableFuture<Drink>> brewing = new ArrayList<>(); // suggestions still at their station
+    private boolean usualOffered;
+    private long waitedNanos; // time this command spent waiting on the customer or pacing
+    private final CommandTokenizer tokens = new CommandTokenizer();
+    private String[] commandWords = new String[0];
+    private Command[] commandActions = new Command[0];
+
+    private interface Command {
+        CafeMetrics.Timer run(CommandTokenizer args);
+    }
+
+    CafeSession(Cafe cafe, Scanner in, PrintStream out, PrintStream results) {
+        this.cafe = cafe;
+        this.menu = cafe.getMenu();
+        this.analyzer = cafe.getAnalyzer();
+        this.in = in;
+        this.out = out;
+        this.results = results;
+        this.headless = results != null;
+        this.order = cafe.newOrder();
+        registerCommands();
+    }
+
+    CafeSession quickStart(boolean quick) {
+        this.quickStart = quick;
+        return this;
+    }
+
+    public void run() {
+        if (!headless && quickStart) {
+            printHeader();
+            out.println("Type a drink name, 'menu' to see them all, or 'help' for commands. 🍃");
+        } else if (!headless) {
+            printHeader();
+            sleepShort();
+
+            out.println("Welcome! This is Full Café Mode — the menu is always available. 🍃✨");
+            out.println("Type a drink name to add it to cart, or use commands listed below.");
+            out.println();
+            printHelp();
+
+            // show menu at start
+            out.println();
+            menu.printMenu(out);
+        }
+
+        CafeMetrics metrics = CafeMetrics.shared();
+        metrics.sessionOpened();
+        boolean open = true;
+        while (open) {
+            serveReady();
+            out.print("\nYour sip choice: ");
+            if (!headless) StartupClock.firstPrompt(quickStart);
+            if (!in.hasNextLine()) break; // end of input (Ctrl-D or end of replay file)
+            tokens.reset(in.nextLine());
+
+            // One line can carry several commands: "2x Autumn Chai Calm, 1x mood joyful; checkout as Ana"
+            boolean any = false;
+            while (open && tokens.nextCommand()) {
+                any = true;
+                long started = System.nanoTime();
+                waitedNanos = 0;
+                CafeMetrics.Timer served = dispatch();
+                if (served == null) {
+                    open = false;
                 } else {
-                    System.out.print("\nMay I have your name, please? ");
-                    String name = scanner.nextLine().trim();
-                    if (name.isEmpty()) name = "Guest";
-
-                    order.setCustomerName(name);
-
-                    order.checkout();
-                    order = new Order(menu);
-                }
-            } else if (input.toLowerCase().startsWith("mood ")) {
-                String mood = input.substring(5).trim();
-                handleMoodFlow(mood, analyzer, menu, order, scanner);
-            } else if (menu.isDrinkName(input)) {
-                // user typed a drink name directly
-                String key = menu.lookupKeyByName(input);
-                handleDirectOrderFlow(key, menu, order, scanner);
-            } else if (input.equalsIgnoreCase("suggest")) {
-                // ask mood and suggest
-                System.out.print("How are you feeling? > ");
-                String mood = scanner.nextLine().trim();
-                handleMoodFlow(mood, analyzer, menu, order, scanner);
+                    metrics.record(served, System.nanoTime() - started - waitedNanos);
+                }
+            }
+            if (!any) unknownCommand(tokens.rest());
+        }
+        for (CompletableFuture<Drink> b : brewing) handOver(b); // nothing left to take, so wait for the last cups
+        brewing.clear();
+        metrics.sessionClosed();
+        order.abandon(); // left without checking out (exit, EOF or dropped connection)
+    }
+
+    // Between commands: hands over whatever the stations have finished, without waiting on the rest
+    private void serveReady() {
+        for (Iterator<CompletableFuture<Drink>> it = brewing.iterator(); it.hasNext(); ) {
+            CompletableFuture<Drink> b = it.next();
+            if (!b.isDone()) continue;
+            it.remove();
+            handOver(b);
+        }
+    }
+
+    private void handOver(CompletableFuture<Drink> brew) {
+        try {
+            brew.join().serve(out);
+        } catch (CompletionException e) {
+            out.println("⚠ A drink couldn't be made: " + e.getCause().getMessage());
+        }
+    }
+
+    // Command words and what they do; each returns what to time it as, or null when the customer leaves
+    private void registerCommands() {
+        command("exit", args -> { goodbye(); return null; });
+        command("quit", args -> { goodbye(); return null; });
+        command("help", args -> { printHelp(); return CafeMetrics.Timer.HELP; });
+        command("menu", args -> { menu.printMenu(out); return CafeMetrics.Timer.MENU; });
+        command("cart", args -> {
+            if (tab != null) tab.printCart(out); else order.printCart(out);
+            return CafeMetrics.Timer.CART;
+        });
+        command("tab", args -> {
+            if (args.atEnd()) {
+                out.println(tab == null ? "\nYou're not on a tab. 'tab <name>' starts or joins one."
+                        : "\nYou're on the '" + tab.getName() + "' tab.");
+            } else if (args.takeWord("leave")) {
+                if (tab != null) out.println("\nLeft the '" + tab.getName() + "' tab; your drinks stay on it.");
+                tab = null;
+            } else {
+                joinTab(args.rest().toString());
+            }
+            return CafeMetrics.Timer.STATUS;
+        });
+        command("stock", args -> {
+            if (cafe.getInventory() == null) {
+                out.println("\nStock isn't being tracked — start with --stock <file>.");
+            } else {
+                cafe.getInventory().printStatus(out);
+            }
+            return CafeMetrics.Timer.STATUS;
+        });
+        command("stations", args -> { BrewScheduler.shared().printStatus(out); return CafeMetrics.Timer.STATUS; });
+        command("board", args -> {
+            OrderEventBus.shared().flush();
+            KitchenDisplay.shared().print(out, menu);
+            return CafeMetrics.Timer.STATUS;
+        });
+        command("queue", args -> {
+            if (cafe.getKitchen() == null) {
+                out.println("\nThe barista queue isn't running.");
+            } else {
+                cafe.getKitchen().printStatus(out);
+                if (lastTicket != null) {
+                    out.println("Your order: ready around " + BaristaQueue.describe(lastTicket.readyAt(), BaristaQueue.clock()));
+                }
+            }
+            return CafeMetrics.Timer.STATUS;
+        });
+        command("name", args -> {
+            if (!args.atEnd()) {
+                customer = args.rest().toString();
+                out.println("Nice to see you, " + customer + " ✨");
+            }
+            return CafeMetrics.Timer.STATUS;
+        });
+        command("report", args -> { printReport(args.rest().toString()); return CafeMetrics.Timer.REPORT; });
+        command("checkout", args -> {
+            checkout(args.takeWord("as") ? args.rest().toString() : null);
+            return CafeMetrics.Timer.CHECKOUT;
+        });
+        command("mood", args -> {
+            if (args.atEnd()) {
+                out.print("How are you feeling? > ");
+                handleMoodFlow(readLine());
+            } else {
+                handleMoodFlow(args.rest().toString());
+            }
+            return CafeMetrics.Timer.MOOD;
+        });
+        command("suggest", args -> {
+            // ask mood and suggest
+            out.print("How are you feeling? > ");
+            handleMoodFlow(readLine());
+            return CafeMetrics.Timer.MOOD;
+        });
+    }
+
+    private void command(String word, Command action) {
+        int n = commandWords.length;
+        commandWords = Arrays.copyOf(commandWords, n + 1);
+        commandActions = Arrays.copyOf(commandActions, n + 1);
+        commandWords[n] = word;
+        commandActions[n] = action;
+    }
+
+    // Runs the tokenizer's current command
+    private CafeMetrics.Timer dispatch() {
+        if (tokens.atQuantity()) return addItems();
+        for (int i = 0; i < commandWords.length; i++) {
+            if (tokens.takeWord(commandWords[i])) return commandActions[i].run(tokens);
+        }
+        CharSequence typed = tokens.rest();
+        String key = menu.lookupKeyByName(typed);
+        if (key == null) key = menu.lookupKeyByPrefix(typed); // partial drink name, e.g. "lavender"
+        if (key != null) {
+            handleDirectOrderFlow(key);
+            return CafeMetrics.Timer.ORDER;
+        }
+        unknownCommand(typed);
+        return CafeMetrics.Timer.UNKNOWN;
+    }
+
+    // "2x Autumn Chai Calm, 1x mood joyful": straight into the cart, no follow-up questions
+    private CafeMetrics.Timer addItems() {
+        while (tokens.nextItem()) {
+            if (tokens.atEnd()) continue;
+            int qty = Math.max(1, tokens.quantity());
+            long variant = Modifiers.take(tokens); // "large oat milk ..."
+            String key;
+            if (tokens.takeWord("mood")) {
+                String mood = tokens.rest().toString();
+                key = analyzer.hasMood(mood) ? analyzer.getKeyForMood(mood) : null;
+                if (key == null) {
+                    List<MoodClassifier.MoodMatch> matches = analyzer.classify(mood, 1);
+                    if (!matches.isEmpty()) key = analyzer.getKeyForMood(matches.get(0).getMood());
+                }
+                if (key == null) {
+                    CafeMetrics.shared().invalidMood();
+                    out.println("💬 I don't recognize the mood '" + mood + "'.");
+                    continue;
+                }
             } else {
-                System.out.println("Unknown command or drink. Type 'help' to see commands or 'menu' to view drinks.");
+                CharSequence typed = tokens.rest();
+                key = menu.lookupKeyByName(typed);
+                if (key == null) key = menu.lookupKeyByPrefix(typed);
+                if (key == null) {
+                    String guess = menu.suggestKeyFor(typed);
+                    out.println(guess != null
+                            ? "Skipped '" + typed + "' — did you mean '" + menu.getNameForKey(guess) + "'?"
+                            : "Skipped '" + typed + "' — it's not on the menu.");
+                    continue;
+                }
+            }
+            if (addToCart(key, variant, qty)) {
+                String extras = variant == Modifiers.PLAIN ? "" : " (" + Modifiers.describe(variant) + ")";
+                out.println("Added " + qty + " x " + menu.getNameForKey(key) + extras + " to cart.");
             }
         }
+        return CafeMetrics.Timer.ORDER;
+    }
+
+    // Asks for a name unless the customer already gave one ("checkout as Ana")
+    private void checkout(String name) {
+        if (tab != null && !settleTab()) return;
+        if (order.isEmpty()) {
+            out.println("\nYour cart is empty. Add a drink first ✨");
+            return;
+        }
+        if (name == null) {
+            out.print("\nMay I have your name, please? ");
+            name = readLine();
+        }
+        if (name.isEmpty()) name = "Guest";
+
+        order.setCustomerName(name);
+
+        if (results != null) results.println(order.toResultLine());
+        // Before checkout, which empties the cart
+        if (cafe.getHistory() != null) cafe.getHistory().record(name, order.getItems(), orderMoods);
+        order.checkout(out);
+        if (order.getTicket() != null) lastTicket = order.getTicket();
+        if (!name.equals("Guest")) customer = name;
+        orderMoods.clear();
+        usualOffered = false;
+        order = cafe.newOrder();
+    }
+
+    private void unknownCommand(CharSequence typed) {
+        String guess = menu.suggestKeyFor(typed);
+        if (guess != null) {
+            out.println("Hmm, did you mean '" + menu.getNameForKey(guess) + "'? Type it again to order.");
+        } else {
+            out.println("Unknown command or drink. Type 'help' to see commands or 'menu' to view drinks.");
+        }
+    }
 
-        scanner.close();
+    // Returns "" instead of throwing when the input runs out mid-question
+    private String readLine() {
+        long asked = System.nanoTime();
+        try {
+            return in.hasNextLine() ? in.nextLine().trim() : "";
+        } finally {
+            waitedNanos += System.nanoTime() - asked;
+        }
     }
 
     // -------------------- UI Helpers --------------------
-    private static void printHeader() {
-        System.out.println("╔══════════════════ SIP HAPPENS CAFÉ ══════════════════╗");
-        System.out.println("║        🌙  Where moods turn into warm brews  ☕        ║");
-        System.out.println("╚═══════════════════════════════════════════════════════╝");
+    private void printHeader() {
+        out.println("╔══════════════════ SIP HAPPENS CAFÉ ══════════════════╗");
+        out.println("║        🌙  Where moods turn into warm brews  ☕        ║");
+        out.println("╚═══════════════════════════════════════════════════════╝");
     }
 
-    private static void printHelp() {
-        System.out.println("\nCommands:");
-        System.out.println("  menu       — Show the full drink menu");
-        System.out.println("  mood <mood>— Ask by mood (e.g., mood anxious)");
-        System.out.println("  suggest    — Let the cafe ask how you're feeling and suggest");
-        System.out.println("  <drink>    — Type a drink name exactly to add it to cart");
-        System.out.println("  cart       — View your cart");
-        System.out.println("  checkout   — Finish and pay");
-        System.out.println("  help       — Show this help");
-        System.out.println("  exit       — Exit the café");
+    private void printHelp() {
+        out.println("\nCommands:");
+        out.println("  menu       — Show the full drink menu");
+        out.println("  mood <mood>— Ask by mood (e.g., mood anxious, or mood tired and stressed)");
+        out.println("  suggest    — Let the cafe ask how you're feeling and suggest");
+        out.println("  <drink>    — Type a drink name exactly to add it to cart");
+        out.println("  cart       — View your cart");
+        out.println("  stations   — See how busy the brewing stations are");
+        out.println("  stock      — See what's left in the pantry");
+        out.println("  queue      — See the drink line and when your order will be ready");
+        out.println("  board      — See the kitchen board: latest orders and fresh brews");
+        out.println("  report     — Today's sales (or 'report all', 'report 3h')");
+        out.println("  name <you> — Tell us who you are, so we can offer your usual");
+        out.println("  checkout   — Finish and pay (or 'checkout as Ana')");
+        out.println("  tab <name> — Share one cart with friends; whoever checks out pays ('tab leave')");
+        out.println("  2x <drink>, 1x mood <mood>; checkout as <name>");
+        out.println("             — Order in one line: ',' between drinks, ';' between commands");
+        out.println("  1x large oat milk extra shot <drink>\n             — Sizes (small, large) and add-ons (oat/almond/soy milk, extra shot,\n               less sweet, no sugar, extra sweet, less ice, no ice) go before the name");
+        out.println("  help       — Show this help");
+        out.println("  exit       — Exit the café");
     }
 
-    private static void goodbye() {
-        System.out.println("\n\"May your days stay warm, and your heart stay full.\"");
-        System.out.println("🌙 Sip Happens Café — come back when your mood seeks another flavor.");
+    private void goodbye() {
+        out.println("\n\"May your days stay warm, and your heart stay full.\"");
+        out.println("🌙 Sip Happens Café — come back when your mood seeks another flavor.");
     }
 
-    private static void sleepShort() {
-        try { TimeUnit.MILLISECONDS.sleep(350); } catch (InterruptedException ignored) {}
+    private void sleepShort() { pause(350); }
+
+    private void sleepMedium() { pause(600); }
+
+    // Deliberate pacing counts as waiting, not as work, in the command timings
+    private void pause(long millis) {
+        if (headless) return;
+        long start = System.nanoTime();
+        try { TimeUnit.MILLISECONDS.sleep(millis); } catch (InterruptedException ignored) {}
+        waitedNanos += System.nanoTime() - start;
     }
 
-    private static void sleepMedium() {
-        try { TimeUnit.MILLISECONDS.sleep(600); } catch (InterruptedException ignored) {}
+    // today (default), all, or a rolling window like "3h"
+    private void printReport(String window) {
+        OrderJournal journal = cafe.getJournal();
+        if (journal == null) {
+            out.println("\nSales reports need the order journal — start without --no-journal.");
+            return;
+        }
+        OrderEventBus.shared().flush(); // orders checked out a moment ago may still be on the bus
+        SalesReport.Window w = SalesReport.Window.parse(window);
+        if (w == null) {
+            out.println("\nTry 'report', 'report all' or 'report 3h'.");
+            return;
+        }
+        try {
+            SalesReport.scan(journal.getPath(), analyzer.getRecipes(), w.from, Long.MAX_VALUE)
+                    .print(out, w.title, menu, analyzer);
+        } catch (IOException e) {
+            out.println("\nCould not read the order journal: " + e.getMessage());
+        }
     }
 
     // -------------------- Flow Handlers --------------------
-    private static void handleMoodFlow(String mood, MoodAnalyzer analyzer, Menu menu, Order order, Scanner scanner) {
+    private void handleMoodFlow(String mood) {
+        if (offerUsual()) return;
         String normalizedMood = mood.toLowerCase();
         try {
-            // Check if mood is valid before proceeding
+            // Not a mood word? Read the sentence for one ("tired and a bit stressed")
             if (!analyzer.hasMood(normalizedMood)) {
-                throw new InvalidMoodException("I don't recognize the mood '" + mood + "'.");
+                List<MoodClassifier.MoodMatch> matches = analyzer.classify(mood, 2);
+                if (matches.isEmpty()) {
+                    throw new InvalidMoodException("I don't recognize the mood '" + mood + "'.");
+                }
+                normalizedMood = matches.get(0).getMood();
+                out.print("\nSounds like you're feeling " + normalizedMood);
+                if (matches.size() > 1) out.print(" (with a little " + matches.get(1).getMood() + ")");
+                out.println(".");
             }
 
+            orderMoods.add(normalizedMood);
+
             // Show mood card
-            printMoodCard(normalizedMood, analyzer);
+            printMoodCard(normalizedMood);
 
             // Get drink suggestion
             Drink suggestion = analyzer.getDrinkForMood(normalizedMood); // NOW EXISTS
             String key = analyzer.getKeyForMood(normalizedMood);
-            double price = menu.getPriceForKey(key);
+            Money price = menu.getPriceForKey(key);
 
-            // Brew & show
-            suggestion.brew();
-            suggestion.serve();
-            System.out.println("Price: " + formatCurrency(price));
+            // Brews at a station while the counter carries on; serveReady() hands it over once it's made
+            brewing.add(suggestion.brew(out));
+            out.println("We'll call it out when it's ready.");
+            out.println("Price: " + price);
 
             // Ask to add to cart
-            System.out.print("\nAdd this to cart? (yes/no) > ");
-            String ans = scanner.nextLine().trim();
+            out.print("\nAdd this to cart? (yes/no) > ");
+            String ans = readLine();
             if (ans.equalsIgnoreCase("yes") || ans.equalsIgnoreCase("y")) {
-                System.out.print("Quantity > ");
-                int qty = readPositiveInt(scanner);
-                order.addItem(key, qty);
-                System.out.println("Added " + qty + " x " + suggestion.getName() + " to cart.");
+                out.print("Quantity > ");
+                int qty = readPositiveInt();
+                if (addToCart(key, Modifiers.PLAIN, qty)) {
+                    out.println("Added " + qty + " x " + suggestion.getName() + " to cart.");
+                }
             } else {
-                System.out.println("No problem — enjoy the moment ✨");
+                out.println("No problem — enjoy the moment ✨");
             }
 
         } catch (InvalidMoodException ime) {
-            System.out.println("💬 " + ime.getMessage());
-            System.out.println("Try one of: " + String.join(", ", analyzer.getSupportedMoods()));
+            CafeMetrics.shared().invalidMood();
+            out.println("💬 " + ime.getMessage());
+            out.println("Try one of: " + String.join(", ", analyzer.getSupportedMoods()));
         } catch (Exception e) {
-            System.out.println("An unexpected error occurred: " + e.getMessage());
+            out.println("An unexpected error occurred: " + e.getMessage());
+        }
+    }
+
+    // Regulars get asked about their usual once per order; replayed scripts are never asked
+    private boolean offerUsual() {
+        if (headless || usualOffered || customer == null || cafe.getHistory() == null) return false;
+        CustomerHistory.Usual usual = cafe.getHistory().usualFor(customer);
+        if (usual == null) return false;
+        usualOffered = true;
+        out.print("\nWelcome back, " + customer + "! Your usual " + menu.getNameForKey(usual.key) + " "
+                + menu.getEmojiForKey(usual.key));
+        if (usual.mood != null) out.print(" (you're most often " + usual.mood + " when you visit)");
+        out.print("? (yes/no) > ");
+        String ans = readLine();
+        if (!ans.equalsIgnoreCase("yes") && !ans.equalsIgnoreCase("y")) return false;
+        out.print("Quantity > ");
+        int qty = readPositiveInt();
+        if (addToCart(usual.key, Modifiers.PLAIN, qty)) {
+            out.println("Added " + qty + " x " + menu.getNameForKey(usual.key) + " to cart. Just like always ☕");
         }
+        return true;
     }
 
-    private static void handleDirectOrderFlow(String key, Menu menu, Order order, Scanner scanner) {
+    private void handleDirectOrderFlow(String key) {
         // Show drink preview, price, ask quantity
         Drink preview = menu.buildDrinkFromKey(key);
-        double price = menu.getPriceForKey(key);
+        Money price = menu.getPriceForKey(key);
 
         // mini preview UI
-        System.out.println();
-        System.out.println("────────── ✧ DRINK PREVIEW ✧ ──────────");
-        System.out.println("   " + preview.getName() + " " + menu.getEmojiForKey(key));
-        System.out.println("\"" + preview.getDescription() + "\"");
-        System.out.println("Ingredients: " + String.join(", ", preview.getIngredients()));
-        System.out.println("Price: " + formatCurrency(price));
-        System.out.println("───────────────────────────────────────");
-
-        System.out.print("Add to cart? (yes/no) > ");
-        String ans = scanner.nextLine().trim();
+        out.println();
+        out.println("────────── ✧ DRINK PREVIEW ✧ ──────────");
+        out.println("   " + preview.getName() + " " + menu.getEmojiForKey(key));
+        out.println("\"" + preview.getDescription() + "\"");
+        out.println("Ingredients: " + String.join(", ", preview.getIngredients()));
+        out.println("Price: " + price);
+        out.println("───────────────────────────────────────");
+
+        out.print("Add to cart? (yes/no) > ");
+        String ans = readLine();
         if (ans.equalsIgnoreCase("yes") || ans.equalsIgnoreCase("y")) {
-            System.out.print("Quantity > ");
-            int qty = readPositiveInt(scanner);
-            order.addItem(key, qty);
-            System.out.println("Added " + qty + " x " + preview.getName() + " to cart.");
+            out.print("Quantity > ");
+            int qty = readPositiveInt();
+            if (addToCart(key, Modifiers.PLAIN, qty)) {
+                out.println("Added " + qty + " x " + preview.getName() + " to cart.");
+            }
         } else {
-            System.out.println("Alright — let the cup wait for another day.");
+            out.println("Alright — let the cup wait for another day.");
+        }
+    }
+
+    // Onto the group tab when there is one, else this customer's own cart; says why when it can't
+    private boolean addToCart(String key, long variant, int qty) {
+        for (int attempt = 1; tab != null; attempt++) {
+            if (tab.addItem(key, variant, qty)) return true;
+            if (tab.isOpen()) {
+                out.println("The '" + tab.getName() + "' tab is full — check it out, or start another.");
+                return false;
+            }
+            if (tab.isSettled()) {
+                out.println("The '" + tab.getName() + "' tab was just checked out, so this goes on your own cart.");
+                tab = null;
+            } else if (attempt >= SETTLE_WAIT_ATTEMPTS) {
+                out.println("The '" + tab.getName() + "' tab is being checked out right now, so this goes on your own cart."
+                        + " You're still on the tab.");
+                break;
+            } else {
+                LockSupport.parkNanos(100_000); // someone's checkout is working out what it can fill
+            }
+        }
+        if (order.addItem(key, variant, qty)) return true;
+        printOutOfStock(key, qty);
+        return false;
+    }
+
+    // Starts or joins a tab; what's already in this customer's cart moves onto it, as far as it fits
+    private void joinTab(String name) {
+        tab = cafe.joinTab(name);
+        int count = order.lineCount();
+        String[] keys = new String[count];
+        long[] variants = new long[count];
+        int[] qtys = new int[count];
+        int moved = 0;
+        int stayed = 0;
+        for (int i = 0; i < count; i++) {
+            if (tab.addItem(order.lineKey(i), order.lineVariant(i), order.lineQty(i))) {
+                moved += order.lineQty(i);
+            } else {
+                keys[stayed] = order.lineKey(i);
+                variants[stayed] = order.lineVariant(i);
+                qtys[stayed++] = order.lineQty(i);
+            }
+        }
+        if (moved > 0) {
+            order.abandon(); // the tab reserves stock when it is checked out
+            for (int i = 0; i < stayed; i++) {
+                if (!order.addItem(keys[i], variants[i], qtys[i])) printOutOfStock(keys[i], qtys[i]);
+            }
+        }
+        out.println("\nYou're on the '" + tab.getName() + "' tab — drinks you add go on it, and whoever checks out pays for all."
+                + (moved > 0 ? " Moved " + moved + " from your cart." : ""));
+        if (stayed > 0) out.println("The tab couldn't take " + stayed + " of your cart's lines; they stay in your own cart and are paid with it.");
+    }
+
+    // Whoever checks out a tab pays for it. Lines the pantry can't cover go back on the tab, so
+    // nobody's drinks are lost.
+    private boolean settleTab() {
+        SharedCart settling = tab;
+        SharedCart.Snapshot lines = settling.close();
+        if (lines == null) {
+            if (settling.isSettled()) {
+                tab = null;
+                out.println("\nSomeone has already checked out the '" + settling.getName() + "' tab ✨");
+            } else {
+                out.println("\nSomeone is checking out the '" + settling.getName() + "' tab right now; try again in a moment.");
+            }
+            return false;
+        }
+        String[] keys = new String[lines.lines];
+        long[] variants = new long[lines.lines];
+        int[] qtys = new int[lines.lines];
+        int unfilled = 0;
+        for (int i = 0; i < lines.lines; i++) {
+            if (order.addItem(lines.keys[i], lines.variants[i], lines.qtys[i])) continue;
+            printOutOfStock(lines.keys[i], lines.qtys[i]);
+            keys[unfilled] = lines.keys[i];
+            variants[unfilled] = lines.variants[i];
+            qtys[unfilled++] = lines.qtys[i];
+        }
+        if (unfilled == 0) {
+            settling.settle();
+            cafe.forgetTab(settling);
+            tab = null;
+            return true;
+        }
+        settling.reopen(new SharedCart.Snapshot(unfilled, keys, variants, qtys));
+        out.println(order.isEmpty()
+                ? "Nothing on the '" + settling.getName() + "' tab can be made right now, so it stays open."
+                : "Those stay on the '" + settling.getName() + "' tab for later; the rest is checked out now.");
+        return !order.isEmpty();
+    }
+
+    private void printOutOfStock(String key, int qty) {
+        Inventory inventory = cafe.getInventory();
+        out.println("Sorry — we're short on " + inventory.shortIngredient(key, qty) + " for "
+                + qty + " x " + menu.getNameForKey(key) + ".");
+        String substitute = inventory.findSubstitute(key, qty);
+        if (substitute != null) {
+            out.println("May we suggest " + menu.getNameForKey(substitute) + " instead? Type its name to order.");
         }
     }
 
-    private static int readPositiveInt(Scanner scanner) {
+    private int readPositiveInt() {
         int qty = 1;
         try {
-            String s = scanner.nextLine().trim();
+            String s = readLine();
             qty = Integer.parseInt(s);
             if (qty <= 0) qty = 1;
         } catch (Exception ignored) {
@@ -182,7 +921,7 @@ public class SipHappens {
         return qty;
     }
 
-    private static void printMoodCard(String mood, MoodAnalyzer analyzer) {
+    private void printMoodCard(String mood) {
         String normalized = mood == null ? "" : mood.toLowerCase();
         String quote;
         String displayMood = normalized;
@@ -195,357 +934,5269 @@ public class SipHappens {
         }
 
         String border = "────────── ✧ Mood Detected ✧ ──────────";
-        System.out.println();
-        System.out.println(border);
+        out.println();
+        out.println(border);
         String emoji = analyzer.getEmojiForMood(normalized);
         if (emoji == null) emoji = "";
-        System.out.println("        " + emoji + " " + displayMood.toUpperCase() + " " + emoji);
-        System.out.println("\"" + quote + "\"");
-        System.out.println(border);
+        out.println("        " + emoji + " " + displayMood.toUpperCase() + " " + emoji);
+        out.println("\"" + quote + "\"");
+        out.println(border);
         sleepShort();
     }
-
-    private static String formatCurrency(double amount) {
-        NumberFormat nf = NumberFormat.getCurrencyInstance(new Locale("en", "PH"));
-        // nf will show PHP sign; if default not desired, we fallback to manual
-        String res;
-        try {
-            res = nf.format(amount);
-        } catch (Exception e) {
-            res = "₱" + String.format("%.2f", amount);
-        }
-        // ensure ₱ prefix (some locales show PHP)
-        if (!res.contains("₱")) {
-            res = "₱" + String.format("%.2f", amount);
-        }
-        return res;
-    }
 }
 
-class Menu {
-    private final Map<String, Double> priceByKey;
-    private final Map<String, String> nameByKey; // <-- private
-    private final Map<String, String> emojiByKey;
-    private final MoodAnalyzer analyzer;
+/**
+ * Serves many tills and kiosks from one JVM: every TCP connection gets its own CafeSession
+ * (and so its own Order) on a small-stack thread, all sharing one Menu and MoodAnalyzer.
+ */
+class CafeServer {
+    static final int DEFAULT_PORT = 7070;
+    private static final long SESSION_STACK_BYTES = 256 * 1024;
+    static final int MAX_SESSIONS = 512; // a thread each; past this, newcomers are asked to come back
 
-    public Menu(MoodAnalyzer analyzer) {
-        this.analyzer = analyzer;
-        priceByKey = new HashMap<>();
-        nameByKey = new HashMap<>();
-        emojiByKey = new HashMap<>();
+    private final Semaphore seats = new Semaphore(MAX_SESSIONS);
 
-        // Prices chosen to match the A + C aesthetic suggestions
-        put("evergreen_iced_matcha", "Evergreen Iced Matcha", 160, "🍃");
-        put("misty_matcha_delight", "Misty Matcha Delight", 170, "🌙");
-        put("frosted_matcha_frappe", "Frosted Matcha Frappe", 165, "❄️");
-        put("comfort_matcha_latte", "Comfort Matcha Latte", 155, "🍵");
-        put("dream_matcha_smoothie", "Dream Matcha Smoothie", 150, "🥭");
-        put("caramel_memory_mocha", "Caramel Memory Mocha", 170, "🍫");
-        put("midnight_mocha_tears", "Midnight Mocha Tears", 175, "💧");
-        put("sunrise_vanilla_bliss", "Sunrise Vanilla Bliss", 140, "🌅");
-        put("autumn_chai_calm", "Autumn Chai Calm", 145, "🍂");
-        put("berry_bloom_blizz", "Berry Bloom Blizz", 150, "🍓");
-        put("mocha_mystery_mix", "Mocha Mystery Mix", 160, "🌀");
-        put("vanilla_dream_brew", "Vanilla Dream Brew", 145, "🌸");
-        put("sparkling_strawberry", "Sparkling Strawberry", 140, "✨");
-        put("honey_warmth_milk", "Honey Warmth Milk", 135, "🐚");
-        put("lavender_serenity_latte", "Lavender Serenity Latte", 150, "💜");
-    }
-
-    private void put(String key, String displayName, double price, String emoji) {
-        priceByKey.put(key, price);
-        nameByKey.put(key, displayName);
-        emojiByKey.put(key, emoji);
+    private final int port;
+    private final Cafe cafe;
+    private final AtomicInteger sessionIds = new AtomicInteger();
+
+    CafeServer(int port, Cafe cafe) {
+        this.port = port;
+        this.cafe = cafe;
     }
 
-    public void printMenu() {
-        System.out.println();
-        System.out.println("╔══════════ ✧ DRINK MENU ✧ ══════════╗");
-        // print each mood mapping for clarity
-        List<String> keys = new ArrayList<>(nameByKey.keySet());
-        Collections.sort(keys);
-        for (String key : keys) {
-            String mood = analyzer.getMoodForKey(key);
-            String line = String.format(" %-13s — %-28s %s %s",
-                    (mood == null ? "" : capitalize(mood)),
-                    nameByKey.get(key),
-                    formatCurrency(priceByKey.get(key)),
-                    emojiByKey.get(key));
-            System.out.println(" " + line);
+    public void serve() throws IOException {
+        try (ServerSocket server = new ServerSocket()) {
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(port), 1024);
+            System.out.println("🌙 Sip Happens Café is open on port " + server.getLocalPort() + " (nc localhost " + server.getLocalPort() + ")");
+            while (!server.isClosed()) {
+                Socket socket = server.accept();
+                if (!seats.tryAcquire()) {
+                    turnAway(socket);
+                    continue;
+                }
+                int id = sessionIds.incrementAndGet();
+                Thread t = new Thread(null, () -> runSession(socket), "session-" + id, SESSION_STACK_BYTES);
+                t.setDaemon(true);
+                t.start();
+            }
         }
-        System.out.println("╚══════════════════════════════════════╝");
     }
 
-    public boolean isDrinkName(String typed) {
-        String lower = typed.toLowerCase();
-        return nameByKey.values().stream().map(String::toLowerCase).anyMatch(n -> n.equals(lower));
+    private static void turnAway(Socket socket) {
+        try (socket) {
+            socket.getOutputStream().write("☕ Every seat is taken right now. Please try again in a minute.\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ignored) {
+            // they left first
+        }
     }
 
-    public String lookupKeyByName(String typed) {
-        String lower = typed.toLowerCase();
-        for (Map.Entry<String, String> e : nameByKey.entrySet()) {
-            if (e.getValue().toLowerCase().equals(lower)) return e.getKey();
+    // Netcat-style client: stdin lines go to the café, café output comes back to stdout
+    static void connect(String target) throws IOException {
+        int colon = target.lastIndexOf(':');
+        String host = colon < 0 ? "localhost" : target.substring(0, colon);
+        int port = Integer.parseInt(colon < 0 ? target : target.substring(colon + 1));
+        try (Socket socket = new Socket(host, port)) {
+            Thread upload = new Thread(() -> {
+                try {
+                    System.in.transferTo(socket.getOutputStream());
+                    socket.shutdownOutput();
+                } catch (IOException ignored) {
+                    // the café closed the connection first
+                }
+            }, "connect-stdin");
+            upload.setDaemon(true);
+            upload.start();
+            socket.getInputStream().transferTo(System.out);
+            System.out.flush();
         }
-        return null;
     }
 
-    // ADDED PUBLIC GETTER for use in Order class
-    public String getNameForKey(String key) {
-        return nameByKey.getOrDefault(key, "Unknown Drink");
+    private void runSession(Socket socket) {
+        try (socket;
+             Scanner in = new Scanner(socket.getInputStream(), StandardCharsets.UTF_8);
+             PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true, StandardCharsets.UTF_8)) {
+            socket.setTcpNoDelay(true);
+            new CafeSession(cafe, in, out, null).run();
+        } catch (IOException e) {
+            System.out.println("Session ended early: " + e.getMessage());
+        } finally {
+            seats.release();
+        }
     }
+}
 
-    public double getPriceForKey(String key) {
-        return priceByKey.getOrDefault(key, 0.0);
-    }
+/**
+ * Lets a head office reach this branch: a loopback port that answers one request per
+ * connection, in plain text lines. "hello" gives the branch name, "customer <name>" what this
+ * branch knows about a regular, and "sales <window>" the branch's SalesReport figures. Each
+ * reply is an "ok <lines>" header and that many lines, or a single "error <why>" line.
+ */
+final class BranchNode {
+    private final String name;
+    private final int port;
+    private final Cafe cafe;
 
-    public String getEmojiForKey(String key) {
-        return emojiByKey.getOrDefault(key, "");
+    BranchNode(String name, int port, Cafe cafe) {
+        this.name = name;
+        this.port = port;
+        this.cafe = cafe;
     }
 
-    public Drink buildDrinkFromKey(String key) {
-        // delegate to analyzer (same builder keys)
-        return analyzer.buildDrinkFromKeyPublic(key);
+    // "north:7101"
+    static BranchNode parse(String spec, Cafe cafe) {
+        int colon = spec.lastIndexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("--branch wants name:port, e.g. north:7101");
+        return new BranchNode(spec.substring(0, colon), Integer.parseInt(spec.substring(colon + 1)), cafe);
     }
 
-    private static String capitalize(String s) {
-        if (s == null || s.isEmpty()) return s;
-        return s.substring(0,1).toUpperCase() + s.substring(1);
+    public void start() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 64);
+        Thread t = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread h = new Thread(() -> answer(socket), "branch-request");
+                    h.setDaemon(true);
+                    h.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }, "branch-" + name);
+        t.setDaemon(true);
+        t.start();
+        System.err.println("🏠 Branch " + name + " answering head office on 127.0.0.1:" + server.getLocalPort());
     }
 
-    private static String formatCurrency(double amount) {
-        NumberFormat nf = NumberFormat.getCurrencyInstance(new Locale("en", "PH"));
-        String res;
-        try {
-            res = nf.format(amount);
-        } catch (Exception e) {
-            res = "₱" + String.format("%.2f", amount);
+    private void answer(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), false, StandardCharsets.UTF_8)) {
+            socket.setSoTimeout(BranchCoordinator.TIMEOUT_MILLIS);
+            String request = in.readLine();
+            if (request == null) return;
+            String[] parts = request.trim().split(" ", 2);
+            String arg = parts.length > 1 ? parts[1].trim() : "";
+            // Replies are framed: "ok <lines>" and then that many lines, or one "error <why>" line
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            PrintStream body = new PrintStream(reply, false, StandardCharsets.UTF_8);
+            String error = switch (parts[0]) {
+                case "hello" -> {
+                    body.println("branch " + name);
+                    yield null;
+                }
+                case "customer" -> answerCustomer(arg, body);
+                case "sales" -> answerSales(arg, body);
+                default -> "unknown request";
+            };
+            body.flush();
+            if (error != null) {
+                out.println("error " + error);
+            } else {
+                String text = reply.toString(StandardCharsets.UTF_8);
+                out.println("ok " + text.lines().count());
+                out.print(text);
+            }
+            out.flush();
+        } catch (IOException e) {
+            // head office hung up; nothing to tidy
         }
-        if (!res.contains("₱")) res = "₱" + String.format("%.2f", amount);
-        return res;
     }
-}
-
-class Order {
-    private final Map<String, Integer> items; // key -> qty
-    private final Menu menu;
-    private String customerName = "Guest";
 
-    public void setCustomerName(String name) {
-        this.customerName = name;
+    private String answerCustomer(String customer, PrintStream out) {
+        CustomerHistory history = cafe.getHistory();
+        int visits = history == null ? 0 : history.visits(customer);
+        out.println("visits " + visits);
+        CustomerHistory.Usual usual = visits == 0 ? null : history.usualFor(customer);
+        if (usual != null) out.println("usual " + usual.key + " " + (usual.mood == null ? "-" : usual.mood));
+        out.println("end");
+        return null;
     }
-    public String getCustomerName(){
-        return this.customerName;
+
+    // Returns what went wrong, or null once the report is written
+    private String answerSales(String window, PrintStream out) throws IOException {
+        SalesReport.Window w = SalesReport.Window.parse(window);
+        OrderJournal journal = cafe.getJournal();
+        if (w == null) return "bad window";
+        if (journal == null) return "no journal";
+        OrderEventBus.shared().flush();
+        SalesReport.scan(journal.getPath(), cafe.getAnalyzer().getRecipes(), w.from, Long.MAX_VALUE).writeTo(out);
+        return null;
     }
+}
 
-    public Order(Menu menu) {
-        this.items = new LinkedHashMap<>();
-        this.menu = menu;
+/**
+ * Consistent hashing of customer names onto branches. Each branch sits at many points on a
+ * 64-bit ring and a name belongs to the first point at or after its own hash, so adding or
+ * removing one branch only moves the names in the arcs it gains or gives up.
+ */
+final class HashRing {
+    static final int POINTS_PER_BRANCH = 160;
+
+    private final List<String> branches = new ArrayList<>();
+    private long[] points = new long[0];   // sorted
+    private int[] owners = new int[0];     // index into branches, per point
+
+    public List<String> branches() { return Collections.unmodifiableList(branches); }
+
+    public void add(String branch) {
+        if (!branches.contains(branch)) branches.add(branch);
+        rebuild();
     }
 
-    public void addItem(String key, int qty) {
-        items.put(key, items.getOrDefault(key, 0) + qty);
+    public void remove(String branch) {
+        branches.remove(branch);
+        rebuild();
     }
 
-    public boolean isEmpty() {
-        return items.isEmpty();
+    // null when there are no branches
+    public String ownerOf(String customer) {
+        if (points.length == 0) return null;
+        int i = Arrays.binarySearch(points, hash(customer.trim().toLowerCase(Locale.ROOT)));
+        if (i < 0) i = -i - 1;
+        return branches.get(owners[i == points.length ? 0 : i]);
     }
 
-    public void printCart() {
-        if (items.isEmpty()) {
-            System.out.println("\nYour cart is empty ✨");
-            return;
-        }
-        System.out.println("\n────────── ✧ CURRENT CART ✧ ──────────");
-        double total = 0.0;
-        for (Map.Entry<String, Integer> e : items.entrySet()) {
-            String key = e.getKey();
-            int qty = e.getValue();
-            double price = menu.getPriceForKey(key);
-            // FIXED: use menu.getNameForKey instead of menu.nameByKey.get(key)
-            System.out.printf("%-28s x%d    %s\n", menu.getNameForKey(key), qty, formatCurrency(price * qty));
-            total += price * qty;
+    // Share of the name space each branch owns
+    public Map<String, Double> shares() {
+        Map<String, Double> shares = new LinkedHashMap<>();
+        for (String b : branches) shares.put(b, 0.0);
+        for (int i = 0; i < points.length; i++) {
+            long arc = points[i] - points[(i + points.length - 1) % points.length]; // unsigned, mod 2^64
+            double fraction = points.length == 1 ? 1 : (arc >>> 1) / 0x1p63;
+            shares.merge(branches.get(owners[i]), fraction, Double::sum);
         }
-        System.out.println("-----------------------------------------");
-        System.out.println("TOTAL: " + formatCurrency(total));
-        System.out.println("─────────────────────────────────────────");
+        return shares;
     }
 
-    public void checkout() {
-        if (items.isEmpty()) {
-            System.out.println("\nCart empty. Nothing to checkout.");
-            return;
+    private void rebuild() {
+        int n = branches.size() * POINTS_PER_BRANCH;
+        long[] keyed = new long[n];
+        long[] packed = new long[n];
+        for (int b = 0; b < branches.size(); b++) {
+            for (int v = 0; v < POINTS_PER_BRANCH; v++) {
+                keyed[b * POINTS_PER_BRANCH + v] = hash(branches.get(b) + "#" + v);
+            }
         }
-        // print receipt
-        System.out.println();
-        System.out.println("────────── ✧ FINAL RECEIPT ✧ ──────────");
-        System.out.println("Customer: " + customerName + " ⭐");
-        double total = 0.0;
-        for (Map.Entry<String, Integer> e : items.entrySet()) {
-            String key = e.getKey();
-            int qty = e.getValue();
-            double price = menu.getPriceForKey(key);
-            // FIXED: use menu.getNameForKey instead of menu.nameByKey.get(key)
-            System.out.printf("%-28s x%d    %s\n", menu.getNameForKey(key), qty, formatCurrency(price * qty));
-            total += price * qty;
+        // Sort points (signed order is fine; the ring only needs a consistent order)
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, (x, y) -> Long.compare(keyed[x], keyed[y]));
+        int[] own = new int[n];
+        for (int i = 0; i < n; i++) {
+            packed[i] = keyed[order[i]];
+            own[i] = order[i] / POINTS_PER_BRANCH;
         }
-        System.out.println("-----------------------------------------");
-        System.out.println("TOTAL                         " + formatCurrency(total));
-        System.out.println("-----------------------------------------");
-        System.out.println("\"Thank you, " + customerName + "! Your presence warmed our café 🌙\"");
-        System.out.println("Enjoy your brews — see you again ✨");
-        System.out.println("─────────────────────────────────────────");
-        items.clear();
+        points = packed;
+        owners = own;
     }
 
-    private static String formatCurrency(double amount) {
-        NumberFormat nf = NumberFormat.getCurrencyInstance(new Locale("en", "PH"));
-        String res;
-        try {
-            res = nf.format(amount);
-        } catch (Exception e) {
-            res = "₱" + String.format("%.2f", amount);
+    // FNV-1a over the UTF-8 bytes, then a murmur finalizer to spread nearby names apart
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
         }
-        if (!res.contains("₱")) res = "₱" + String.format("%.2f", amount);
-        return res;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
     }
 }
 
-abstract class Drink {
-    private final String name;
-    private final List<String> ingredients;
-    private String description;
+/**
+ * Head office for several branches running on this machine, each its own SipHappens process
+ * started with --branch. Customer lookups go to the branch the name hashes to on a HashRing;
+ * sales are asked of every branch at once and added up into one SalesReport.
+ */
+final class BranchCoordinator {
+    static final int TIMEOUT_MILLIS = 5000;
 
-    public Drink(String name) {
-        this.name = name;
-        this.ingredients = new ArrayList<>();
-        this.description = "";
+    private interface Reply<T> {
+        T read(BufferedReader in) throws IOException;
     }
 
-    public String getName() { return name; }
-    public List<String> getIngredients() { return new ArrayList<>(ingredients); }
-    public void addIngredient(String ingredient) { ingredients.add(ingredient); }
-    public void setDescription(String desc) { this.description = desc; }
-    public String getDescription() { return description; }
-    public abstract void brew();
-    public void serve() {
-        System.out.println("\nYour drink is ready!");
-        System.out.println(formatTitle(this.getName()));
-        System.out.println("\"" + this.getDescription() + "\"");
-        System.out.println("Ingredients: " + String.join(", ", this.getIngredients()));
+    private final Menu menu;
+    private final MoodAnalyzer analyzer;
+    private final HashRing ring = new HashRing();
+    private final Map<String, Integer> ports = new LinkedHashMap<>();
+
+    // "north=7101,south=7102"
+    BranchCoordinator(Menu menu, MoodAnalyzer analyzer, String branches) {
+        this.menu = menu;
+        this.analyzer = analyzer;
+        for (String spec : branches.split(",")) {
+            if (!spec.isBlank()) join(spec.trim(), null);
+        }
     }
 
-    protected String formatTitle(String title) { return "* " + title.toUpperCase() + " *"; }
-}
+    public void run(Scanner in, PrintStream out) {
+        out.println("🏢 Sip Happens head office — " + ports.size() + " branch" + (ports.size() == 1 ? "" : "es"));
+        printHelp(out);
+        while (true) {
+            out.print("\nhead office> ");
+            out.flush();
+            if (!in.hasNextLine()) return;
+            String line = in.nextLine().trim();
+            String[] parts = line.split("\\s+", 2);
+            String arg = parts.length > 1 ? parts[1].trim() : "";
+            switch (parts[0].toLowerCase(Locale.ROOT)) {
+                case "" -> { }
+                case "exit", "quit" -> { return; }
+                case "help" -> printHelp(out);
+                case "branches" -> printBranches(out);
+                case "whereis" -> out.println(arg + " belongs to " + ownerOr(arg, "no branch (none joined)"));
+                case "customer" -> printCustomer(arg, out);
+                case "sales" -> printSales(arg, out);
+                case "join" -> join(arg, out);
+                case "leave" -> leave(arg, out);
+                default -> out.println("Unknown command. Type 'help'.");
+            }
+        }
+    }
 
-class Smoothie extends Drink {
-    public Smoothie(String name) { super(name); }
-    @Override
-    public void brew() {
-        System.out.println("\n✨ Brewing your " + getName() + "...");
-        System.out.println("---------------------------------------");
-        for (String ing : getIngredients()) System.out.println("🥭 Adding " + ing + "...");
-        try { TimeUnit.MILLISECONDS.sleep(450); } catch (InterruptedException ignored) {}
-        System.out.println("🧊 Blending until smooth and bright...");
+    private void printHelp(PrintStream out) {
+        out.println("\nCommands:");
+        out.println("  branches          — Branches, their ports and share of customers");
+        out.println("  whereis <name>    — Which branch keeps this customer's history");
+        out.println("  customer <name>   — Visits and usual drink, from that branch");
+        out.println("  sales [window]    — All branches' sales added up (today, all, 3h)");
+        out.println("  join <name>=<port> / leave <name>");
+        out.println("  exit");
     }
-}
 
-class Tea extends Drink {
-    public Tea(String name) { super(name); }
-    @Override
-    public void brew() {
-        System.out.println("\n🍵 Brewing your " + getName() + "...");
-        System.out.println("---------------------------------------");
-        for (String ing : getIngredients()) System.out.println("🌿 Steeping " + ing + "...");
-        try { TimeUnit.MILLISECONDS.sleep(450); } catch (InterruptedException ignored) {}
-        System.out.println("🫖 Letting the warmth steep softly...");
+    private String ownerOr(String customer, String none) {
+        String owner = ring.ownerOf(customer);
+        return owner == null ? none : owner;
     }
-}
+
+    private void join(String spec, PrintStream out) {
+        int eq = spec.indexOf('=');
+        if (eq <= 0) {
+            if (out != null) out.println("Try 'join west=7104'.");
+            else throw new IllegalArgumentException("--coordinator wants name=port,..., e.g. north=7101,south=7102");
+            return;
+        }
+        String name = spec.substring(0, eq).trim();
+        int port;
+        try {
+            port = Integer.parseInt(spec.substring(eq + 1).trim());
+        } catch (NumberFormatException e) {
+            if (out != null) out.println("'" + spec.substring(eq + 1).trim() + "' isn't a port. Try 'join west=7104'.");
+            else throw new IllegalArgumentException("--coordinator wants name=port,..., e.g. north=7101,south=7102");
+            return;
+        }
+        ports.put(name, port);
+        ring.add(name);
+        if (out != null) {
+            out.printf("%s joined: %.1f%% of customers now belong to it; nobody else moves.%n", name, 100 * ring.shares().get(name));
+            try {
+                ask(name, "hello", BufferedReader::readLine);
+            } catch (IOException e) {
+                out.println("⚠ " + name + " isn't answering yet: " + e.getMessage());
+            }
+        }
+    }
+
+    private void leave(String name, PrintStream out) {
+        if (!ports.containsKey(name)) {
+            out.println("No branch called " + name + ".");
+            return;
+        }
+        double share = ring.shares().get(name);
+        ring.remove(name);
+        ports.remove(name);
+        out.printf("%s left: its %.1f%% of customers are shared out among the others; nobody else moves.%n", name, 100 * share);
+    }
+
+    private void printBranches(PrintStream out) {
+        if (ports.isEmpty()) {
+            out.println("No branches yet. Try 'join north=7101'.");
+            return;
+        }
+        Map<String, Double> shares = ring.shares();
+        for (Map.Entry<String, Integer> b : ports.entrySet()) {
+            String status;
+            try {
+                status = ask(b.getKey(), "hello", BufferedReader::readLine) != null ? "open" : "no answer";
+            } catch (IOException e) {
+                status = "no answer";
+            }
+            out.printf("  %-12s port %-6d %5.1f%% of customers  %s%n", b.getKey(), b.getValue(), 100 * shares.get(b.getKey()), status);
+        }
+    }
+
+    private void printCustomer(String customer, PrintStream out) {
+        String owner = ring.ownerOf(customer);
+        if (customer.isEmpty() || owner == null) {
+            out.println(customer.isEmpty() ? "Try 'customer Ana'." : "No branches yet.");
+            return;
+        }
+        try {
+            List<String> reply = ask(owner, "customer " + customer, BranchCoordinator::readUntilEnd);
+            int visits = 0;
+            String usual = null;
+            for (String line : reply) {
+                String[] f = line.split(" ");
+                if (f[0].equals("visits")) visits = Integer.parseInt(f[1]);
+                if (f[0].equals("usual")) usual = menu.getNameForKey(f[1]) + (f[2].equals("-") ? "" : " (mostly " + f[2] + ")");
+            }
+            out.println(customer + " @ " + owner + ": " + visits + " visit" + (visits == 1 ? "" : "s")
+                    + (usual == null ? "" : ", usually " + usual));
+            if (visits == 0) printVisitedElsewhere(customer, owner, out);
+        } catch (IOException | RuntimeException e) {
+            out.println("⚠ " + owner + " couldn't be asked about " + customer + ": " + e.getMessage());
+        }
+    }
+
+    // Someone new to their home branch may still have ordered at another one
+    private void printVisitedElsewhere(String customer, String owner, PrintStream out) {
+        List<String> seenAt = new ArrayList<>();
+        for (String branch : ports.keySet()) {
+            if (branch.equals(owner)) continue;
+            try {
+                List<String> reply = ask(branch, "customer " + customer, BranchCoordinator::readUntilEnd);
+                if (!reply.isEmpty() && !reply.get(0).equals("visits 0")) seenAt.add(branch);
+            } catch (IOException e) {
+                // skip branches that are closed
+            }
+        }
+        if (!seenAt.isEmpty()) out.println("  (has ordered at " + String.join(", ", seenAt) + ")");
+    }
+
+    private void printSales(String window, PrintStream out) {
+        SalesReport.Window w = SalesReport.Window.parse(window);
+        if (w == null) {
+            out.println("Try 'sales', 'sales all' or 'sales 3h'.");
+            return;
+        }
+        Map<String, CompletableFuture<SalesReport>> asked = new LinkedHashMap<>();
+        for (String branch : ports.keySet()) {
+            asked.put(branch, CompletableFuture.supplyAsync(() -> {
+                try {
+                    return ask(branch, "sales " + window, in -> {
+                        SalesReport report = SalesReport.empty(analyzer.getRecipes());
+                        report.readFrom(in);
+                        return report;
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        SalesReport total = SalesReport.empty(analyzer.getRecipes());
+        out.println("\nBy branch:");
+        for (Map.Entry<String, CompletableFuture<SalesReport>> a : asked.entrySet()) {
+            try {
+                SalesReport part = a.getValue().join();
+                total.merge(part);
+                out.printf("  %-12s %5d orders  %s%n", a.getKey(), part.getOrders(), PesoFormat.format(part.getRevenue()));
+            } catch (CompletionException e) {
+                out.printf("  %-12s (no answer: %s)%n", a.getKey(), e.getCause().getMessage());
+            }
+        }
+        total.print(out, "ALL BRANCHES, " + w.title, menu, analyzer);
+    }
+
+    private <T> T ask(String branch, String request, Reply<T> reply) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), ports.get(branch)), TIMEOUT_MILLIS);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            PrintStream out = new PrintStream(socket.getOutputStream(), true, StandardCharsets.UTF_8);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.println(request);
+            String status = in.readLine();
+            if (status == null) throw new IOException("hung up");
+            if (status.startsWith("error ")) throw new IOException(status.substring(6));
+            int lines;
+            try {
+                lines = status.startsWith("ok ") ? Integer.parseInt(status.substring(3)) : -1;
+            } catch (NumberFormatException e) {
+                lines = -1;
+            }
+            if (lines < 0) throw new IOException("unexpected reply '" + status + "'");
+            StringBuilder body = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                String line = in.readLine();
+                if (line == null) throw new IOException("reply cut short");
+                body.append(line).append('\n');
+            }
+            return reply.read(new BufferedReader(new StringReader(body.toString())));
+        }
+    }
+
+    private static List<String> readUntilEnd(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (String line = in.readLine(); line != null && !line.equals("end"); line = in.readLine()) lines.add(line);
+        return lines;
+    }
+}
+
+class Menu {
+    private final MoodAnalyzer analyzer;
+    private final CatalogStore catalog;
+
+    public Menu(MoodAnalyzer analyzer) {
+        this.analyzer = analyzer;
+        this.catalog = analyzer.getCatalogStore();
+    }
+
+    public void printMenu() {
+        printMenu(System.out);
+    }
+
+    // Rendered once per catalog version, so this is a single write
+    public void printMenu(PrintStream out) {
+        long start = System.nanoTime();
+        out.print(catalog.current().getRenderedMenu());
+        out.flush();
+        CafeMetrics.shared().record(CafeMetrics.Timer.RENDER, System.nanoTime() - start);
+    }
+
+    public boolean isDrinkName(CharSequence typed) {
+        return catalog.current().getNameIndex().exact(typed) != null;
+    }
+
+    public String lookupKeyByName(CharSequence typed) {
+        return catalog.current().getNameIndex().exact(typed);
+    }
+
+    // Dense drink number in the current catalog; -1 for an unknown key
+    public int ordinalOf(String key) {
+        return catalog.current().getRecipes().ordinalOf(key);
+    }
+
+    // Partial names: "lavender" -> lavender_serenity_latte, but only when the prefix is unambiguous
+    public String lookupKeyByPrefix(CharSequence typed) {
+        return catalog.current().getNameIndex().uniquePrefix(typed);
+    }
+
+    // Closest drink within a small edit distance, for "did you mean" hints on typos
+    public String suggestKeyFor(CharSequence typed) {
+        return catalog.current().getNameIndex().closest(typed);
+    }
+
+    // ADDED PUBLIC GETTER for use in Order class
+    public String getNameForKey(String key) {
+        return catalog.current().getNameForKey(key);
+    }
+
+    public Money getPriceForKey(String key) {
+        return catalog.current().getPriceForKey(key);
+    }
+
+    public String getEmojiForKey(String key) {
+        return catalog.current().getEmojiForKey(key);
+    }
+
+    public Drink buildDrinkFromKey(String key) {
+        // delegate to analyzer (same builder keys)
+        return analyzer.buildDrinkFromKeyPublic(key);
+    }
+}
+
+/**
+ * Case-insensitive drink name lookups built once from the menu: an open-addressed table for
+ * exact names, a trie for partial names and a bounded edit distance for typos. Lookups fold
+ * case char by char, so none of them allocate a lower-cased copy of the input.
+ */
+class DrinkNameIndex {
+    private static final int MIN_PREFIX = 3;
+    private static final int MAX_EDITS = 3;
+
+    private final char[][] names;     // folded display names
+    private final String[] keys;
+    private final int[] slots;        // open addressing: index into names/keys, -1 when empty
+    private final TrieNode root = new TrieNode();
+    private final int longestName;
+    private final ThreadLocal<int[][]> rows;
+
+    DrinkNameIndex(Map<String, String> nameByKey) {
+        int n = nameByKey.size();
+        names = new char[n][];
+        keys = new String[n];
+        slots = new int[Integer.highestOneBit(Math.max(1, n) * 4 - 1) << 1];
+        Arrays.fill(slots, -1);
+
+        int i = 0;
+        int longest = 0;
+        for (Map.Entry<String, String> e : nameByKey.entrySet()) {
+            char[] folded = e.getValue().trim().toLowerCase(Locale.ROOT).toCharArray();
+            names[i] = folded;
+            keys[i] = e.getKey();
+            longest = Math.max(longest, folded.length);
+
+            int slot = hash(folded, 0, folded.length) & (slots.length - 1);
+            while (slots[slot] != -1) slot = (slot + 1) & (slots.length - 1);
+            slots[slot] = i;
+
+            TrieNode node = root;
+            for (char c : folded) {
+                node = node.childOrCreate(c);
+                node.add(e.getKey());
+            }
+            i++;
+        }
+        longestName = longest;
+        int width = longest + MAX_EDITS + 2;
+        rows = ThreadLocal.withInitial(() -> new int[2][width]);
+    }
+
+    String exact(CharSequence typed) {
+        if (typed == null) return null;
+        int len = typed.length();
+        int slot = hash(typed, 0, len) & (slots.length - 1);
+        while (slots[slot] != -1) {
+            char[] candidate = names[slots[slot]];
+            if (equalsFolded(candidate, typed)) return keys[slots[slot]];
+            slot = (slot + 1) & (slots.length - 1);
+        }
+        return null;
+    }
+
+    String uniquePrefix(CharSequence typed) {
+        if (typed == null || typed.length() < MIN_PREFIX) return null;
+        TrieNode node = root;
+        for (int i = 0; i < typed.length() && node != null; i++) {
+            node = node.child(fold(typed.charAt(i)));
+        }
+        return node != null && node.count == 1 ? node.onlyKey : null;
+    }
+
+    String closest(CharSequence typed) {
+        if (typed == null || typed.length() < MIN_PREFIX || typed.length() > longestName + MAX_EDITS) return null;
+        int bound = Math.max(1, Math.min(MAX_EDITS, typed.length() / 5));
+        String best = null;
+        int bestDistance = bound + 1;
+        for (int i = 0; i < names.length; i++) {
+            int d = distance(names[i], typed, bestDistance - 1);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = keys[i];
+            }
+        }
+        return best;
+    }
+
+    // Levenshtein distance with an early exit once every cell in a row exceeds the bound
+    private int distance(char[] name, CharSequence typed, int bound) {
+        int m = name.length;
+        int n = typed.length();
+        if (Math.abs(m - n) > bound) return Integer.MAX_VALUE;
+        int[][] r = rows.get();
+        int[] prev = r[0];
+        int[] cur = r[1];
+        for (int j = 0; j <= n; j++) prev[j] = j;
+        for (int i = 1; i <= m; i++) {
+            cur[0] = i;
+            int rowMin = i;
+            char a = name[i - 1];
+            for (int j = 1; j <= n; j++) {
+                int cost = a == fold(typed.charAt(j - 1)) ? 0 : 1;
+                int v = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                cur[j] = v;
+                if (v < rowMin) rowMin = v;
+            }
+            if (rowMin > bound) return Integer.MAX_VALUE;
+            int[] t = prev; prev = cur; cur = t;
+        }
+        return prev[n] <= bound ? prev[n] : Integer.MAX_VALUE;
+    }
+
+    private static boolean equalsFolded(char[] folded, CharSequence typed) {
+        if (folded.length != typed.length()) return false;
+        for (int i = 0; i < folded.length; i++) {
+            if (folded[i] != fold(typed.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) h = 31 * h + fold(s.charAt(i));
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(char[] s, int from, int to) {
+        int h = 0;
+        for (int i = from; i < to; i++) h = 31 * h + s[i];
+        return h ^ (h >>> 16);
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    private static final class TrieNode {
+        private char[] labels = new char[0];
+        private TrieNode[] children = new TrieNode[0];
+        int count;
+        String onlyKey;
+
+        TrieNode child(char c) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == c) return children[i];
+            }
+            return null;
+        }
+
+        TrieNode childOrCreate(char c) {
+            TrieNode existing = child(c);
+            if (existing != null) return existing;
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = c;
+            return children[children.length - 1] = new TrieNode();
+        }
+
+        void add(String key) {
+            count++;
+            onlyKey = count == 1 ? key : null;
+        }
+    }
+}
+
+/** One customer's cart. It belongs to a single session's thread; tabs shared between sessions are SharedCarts. */
+class Order {
+    private static final long[] NO_DISCOUNTS = new long[0];
+    private static final int[] NO_BUNDLES = new int[0];
+    private static final String[] NO_KEYS = new String[0];
+
+    // Cart lines, one per (drink key, size and modifiers). Keys, not catalog ordinals, because a
+    // catalog reload renumbers drinks while carts are open. Carts are short, so a scan finds a
+    // line faster than hashing would, and adding to one allocates nothing.
+    private int lines;
+    private long[] lineVariant = NO_DISCOUNTS;
+    private String[] lineKey = NO_KEYS;
+    private int[] lineQty = NO_BUNDLES;
+    private long[] lineUnit = NO_DISCOUNTS; // one cup at list price, size and add-ons included
+    private final Menu menu;
+    private final Inventory inventory;  // null when stock isn't tracked
+    private final BaristaQueue kitchen; // null when nobody is making the drinks (bench, load test)
+    private BaristaQueue.Ticket ticket;
+    private final List<Inventory.Reservation> reservations; // empty and unused without an inventory
+    private final PricingEngine pricing; // null when there are no promotions
+    private long drinkCount;
+
+    // Running totals, kept current by addItem so the total never needs a pass over the cart
+    private long subtotal;
+    private long discounts;
+    private final long[] ruleDiscounts; // per promotion rule
+    private final int[] bundleLeft;     // cups counting towards each bundle's two sides
+    private final int[] bundleRight;
+    private final long[] bundleLeftCheapest;  // lowest drink price on each side after its per-cup deal
+    private final long[] bundleRightCheapest;
+    private PricingEngine.Rule loyalty;
+    private String customerName = "Guest";
+
+    public void setCustomerName(String name) {
+        this.customerName = name;
+        if (pricing != null) loyalty = pricing.loyaltyFor(name);
+    }
+    public String getCustomerName(){
+        return this.customerName;
+    }
+
+    public Order(Menu menu) {
+        this(menu, null, null, null);
+    }
+
+    public Order(Menu menu, Inventory inventory, BaristaQueue kitchen, PricingEngine pricing) {
+        this.menu = menu;
+        this.inventory = inventory;
+        this.kitchen = kitchen;
+        this.pricing = pricing;
+        this.reservations = inventory == null ? Collections.emptyList() : new ArrayList<>();
+        int rules = pricing == null ? 0 : pricing.ruleCount();
+        this.ruleDiscounts = rules == 0 ? NO_DISCOUNTS : new long[rules];
+        this.bundleLeft = rules == 0 ? NO_BUNDLES : new int[rules];
+        this.bundleRight = rules == 0 ? NO_BUNDLES : new int[rules];
+        this.bundleLeftCheapest = rules == 0 ? NO_DISCOUNTS : new long[rules];
+        this.bundleRightCheapest = rules == 0 ? NO_DISCOUNTS : new long[rules];
+        Arrays.fill(bundleLeftCheapest, Long.MAX_VALUE);
+        Arrays.fill(bundleRightCheapest, Long.MAX_VALUE);
+    }
+
+    public boolean addItem(String key, int qty) {
+        return addItem(key, Modifiers.PLAIN, qty);
+    }
+
+    // Returns false (and adds nothing) when the pantry can't cover qty of this drink
+    public boolean addItem(String key, long variant, int qty) {
+        if (inventory != null) {
+            Inventory.Reservation r = inventory.reserve(key, qty);
+            if (r == null) return false;
+            reservations.add(r);
+        }
+        if (lines == 0) CafeMetrics.shared().cartOpened();
+        int line = 0;
+        while (line < lines && (lineVariant[line] != variant || !lineKey[line].equals(key))) line++;
+        if (line == lines) {
+            if (lines == lineKey.length) growLines();
+            lineVariant[line] = variant;
+            lineKey[line] = key;
+            lineQty[line] = 0;
+            lineUnit[line] = menu.getPriceForKey(key).centavos() + Modifiers.surcharge(variant);
+            lines++;
+        }
+        lineQty[line] += qty;
+        drinkCount += qty;
+        subtotal += Math.multiplyExact(lineUnit[line], (long) qty);
+        // Promotions price the drink itself; add-ons are always full price
+        if (pricing != null) applyPromotions(key, qty);
+        OrderEventBus.shared().itemAdded(customerName, key, qty);
+        return true;
+    }
+
+    // Prices the new cups at the rules in force now; only the bundles this drink belongs to are touched
+    private void applyPromotions(String key, int qty) {
+        PricingEngine.Table table = pricing.current();
+        int slot = table.slot(key);
+        if (slot < 0) return;
+        int rule = table.unitRule[slot];
+        long price = menu.getPriceForKey(key).centavos();
+        if (rule >= 0) {
+            long off = table.unitDiscount[slot] * qty;
+            ruleDiscounts[rule] += off;
+            discounts += off;
+            price -= table.unitDiscount[slot];
+        }
+        long bundles = table.bundleLeft[slot] | table.bundleRight[slot];
+        while (bundles != 0) {
+            int r = Long.numberOfTrailingZeros(bundles);
+            bundles &= bundles - 1;
+            if ((table.bundleLeft[slot] & (1L << r)) != 0) {
+                bundleLeft[r] += qty;
+                bundleLeftCheapest[r] = Math.min(bundleLeftCheapest[r], price);
+            } else {
+                bundleRight[r] += qty;
+                bundleRightCheapest[r] = Math.min(bundleRightCheapest[r], price);
+            }
+            // A pair never takes off more than its two cheapest cups still cost, so deals can't stack below zero
+            long pairs = Math.min(bundleLeft[r], bundleRight[r]);
+            long off = pairs == 0 ? 0
+                    : pairs * Math.min(pricing.rule(r).centavosOff, bundleLeftCheapest[r] + bundleRightCheapest[r]);
+            discounts += off - ruleDiscounts[r];
+            ruleDiscounts[r] = off;
+        }
+    }
+
+    private void growLines() {
+        int n = Math.max(8, lines * 2); // room for most carts in one go
+        lineVariant = Arrays.copyOf(lineVariant, n);
+        lineKey = Arrays.copyOf(lineKey, n);
+        lineQty = Arrays.copyOf(lineQty, n);
+        lineUnit = Arrays.copyOf(lineUnit, n);
+    }
+
+    private void clearCart() {
+        Arrays.fill(lineKey, 0, lines, null);
+        lines = 0;
+        drinkCount = 0;
+        subtotal = 0;
+        discounts = 0;
+        Arrays.fill(ruleDiscounts, 0);
+        Arrays.fill(bundleLeft, 0);
+        Arrays.fill(bundleRight, 0);
+        Arrays.fill(bundleLeftCheapest, Long.MAX_VALUE);
+        Arrays.fill(bundleRightCheapest, Long.MAX_VALUE);
+    }
+
+    // Customer walked away: put any reserved ingredients back
+    public void abandon() {
+        if (inventory != null) {
+            for (Inventory.Reservation r : reservations) inventory.release(r);
+            reservations.clear();
+        }
+        if (lines > 0) CafeMetrics.shared().cartClosed();
+        clearCart();
+    }
+
+    public boolean isEmpty() {
+        return lines == 0;
+    }
+
+    // Set once checked out, when a barista queue is running
+    public BaristaQueue.Ticket getTicket() {
+        return ticket;
+    }
+
+    // Cups per drink, whatever the size and add-ons
+    public Map<String, Integer> getItems() {
+        Map<String, Integer> items = new LinkedHashMap<>();
+        for (int i = 0; i < lines; i++) items.merge(lineKey[i], lineQty[i], Integer::sum);
+        return items;
+    }
+
+    public int lineCount() { return lines; }
+    public String lineKey(int line) { return lineKey[line]; }
+    public long lineVariant(int line) { return lineVariant[line]; }
+    public int lineQty(int line) { return lineQty[line]; }
+    public long lineTotal(int line) { return lineUnit[line] * lineQty[line]; }
+
+    public void printCart() {
+        printCart(System.out);
+    }
+
+    public void printCart(PrintStream out) {
+        if (lines == 0) {
+            out.println("\nYour cart is empty ✨");
+            return;
+        }
+        Screen screen = Screen.begin();
+        screen.line().line("────────── ✧ CURRENT CART ✧ ──────────");
+        renderLines(screen);
+        renderDiscounts(screen);
+        screen.line("-----------------------------------------");
+        screen.text("TOTAL: ").money(getTotal()).line();
+        screen.line("─────────────────────────────────────────");
+        screen.flushTo(out);
+    }
+
+    // One row per cart line, at list price
+    private void renderLines(Screen screen) {
+        for (int i = 0; i < lines; i++) {
+            // FIXED: use menu.getNameForKey instead of menu.nameByKey.get(key)
+            screen.padRight(menu.getNameForKey(lineKey[i]), 28).text(" x").number(lineQty[i]).text("    ")
+                    .money(lineTotal(i)).line();
+            if (lineVariant[i] != Modifiers.PLAIN) screen.text("  ").modifiers(lineVariant[i]).line();
+        }
+    }
+
+    // One row per promotion that took something off
+    private void renderDiscounts(Screen screen) {
+        for (int r = 0; r < ruleDiscounts.length; r++) {
+            if (ruleDiscounts[r] > 0) screen.padRight(pricing.rule(r).label, 33).text("-").money(ruleDiscounts[r]).line();
+        }
+        long loyaltyOff = loyaltyDiscount();
+        if (loyaltyOff > 0) screen.padRight(loyalty.label, 33).text("-").money(loyaltyOff).line();
+    }
+
+    private long loyaltyDiscount() {
+        return loyalty == null ? 0 : loyalty.discountOn(subtotal - discounts);
+    }
+
+    // O(1): the running subtotal less the running discounts, never below zero
+    public long getTotal() {
+        return Math.max(0, subtotal - discounts - loyaltyDiscount());
+    }
+
+    // One machine-readable line per order for batch/replay mode: name, key:qty list, total
+    public String toResultLine() {
+        StringBuilder sb = new StringBuilder("ORDER\t").append(customerName).append('\t');
+        for (int i = 0; i < lines; i++) {
+            if (i > 0) sb.append(',');
+            Modifiers.appendCode(sb.append(lineKey[i]), lineVariant[i]).append(':').append(lineQty[i]);
+        }
+        sb.append('\t');
+        return PesoFormat.appendPlain(sb, getTotal()).toString();
+    }
+
+    public void checkout() {
+        checkout(System.out);
+    }
+
+    public void checkout(PrintStream out) {
+        if (lines == 0) {
+            out.println("\nCart empty. Nothing to checkout.");
+            return;
+        }
+        if (kitchen != null) ticket = kitchen.enqueue(getItems());
+        // print receipt
+        Screen screen = Screen.begin();
+        screen.line();
+        screen.line("────────── ✧ FINAL RECEIPT ✧ ──────────");
+        screen.text("Customer: ").text(customerName).text(" ⭐").line();
+        renderLines(screen);
+        renderDiscounts(screen);
+        long total = getTotal();
+        screen.line("-----------------------------------------");
+        screen.text("TOTAL                         ").money(total).line();
+        screen.line("-----------------------------------------");
+        if (ticket != null) {
+            screen.text("Ready around ").text(BaristaQueue.describe(ticket.readyAt(), BaristaQueue.clock())).text(" ☕").line();
+        }
+        screen.text("\"Thank you, ").text(customerName).text("! Your presence warmed our café 🌙\"").line();
+        screen.line("Enjoy your brews — see you again ✨");
+        screen.line("─────────────────────────────────────────");
+        screen.flushTo(out);
+        // The journal, metrics, kitchen board and printer pick it up from the bus
+        OrderEventBus.shared().checkedOut(this, total);
+        if (inventory != null) {
+            for (Inventory.Reservation r : reservations) inventory.commit(r);
+            reservations.clear();
+        }
+        CafeMetrics.shared().cartClosed();
+        clearCart();
+    }
+
+}
+
+/**
+ * A group tab: several sessions (kiosks, phones on --serve) add to one cart at the same time,
+ * and whoever checks out pays for all of it. A line, a drink key with its size and add-ons,
+ * claims a slot with one CAS, and its cups are counted with getAndAdd on a primitive array
+ * padded so that two lines never share a cache line; nobody takes a lock. Checkout closes the
+ * tab, waits out adds already under way and reads the final lines; anything it can't fill is
+ * put back and the tab opens again.
+ */
+final class SharedCart {
+    static final int MAX_LINES = 64;
+    private static final int STRIDE = 8;            // longs per 64-byte cache line
+    private static final int OPEN_READ_ATTEMPTS = 64;
+
+    // What a slot holds: set once, never changed, so a slot's identity can't tear
+    private static final class Line {
+        final String key;
+        final long variant;
+
+        Line(String key, long variant) {
+            this.key = key;
+            this.variant = variant;
+        }
+    }
+
+    private final String name;
+    private final Menu menu;
+    // Lines fill from slot 0 in the order they were first added, like Order's
+    private final AtomicReferenceArray<Line> lines = new AtomicReferenceArray<>(MAX_LINES); // null while free
+    private final AtomicLongArray lineQty = new AtomicLongArray(MAX_LINES * STRIDE);
+    private final LongAdder writesStarted = new LongAdder();
+    private final LongAdder writesFinished = new LongAdder();
+    private final AtomicBoolean open = new AtomicBoolean(true);
+    private volatile boolean settled; // paid in full, so closed for good
+
+    /** The tab's lines at one instant, in the order they were first added. */
+    static final class Snapshot {
+        final int lines;
+        final String[] keys;
+        final long[] variants;
+        final int[] qtys;
+
+        Snapshot(int lines, String[] keys, long[] variants, int[] qtys) {
+            this.lines = lines;
+            this.keys = keys;
+            this.variants = variants;
+            this.qtys = qtys;
+        }
+    }
+
+    SharedCart(String name, Menu menu) {
+        this.name = name;
+        this.menu = menu;
+    }
+
+    public String getName() { return name; }
+    public boolean isOpen() { return open.get(); }
+    public boolean isSettled() { return settled; }
+
+    // False once the tab is closed, or when it has no line left for a new drink
+    public boolean addItem(String key, long variant, int qty) {
+        if (menu.ordinalOf(key) < 0) throw new IllegalArgumentException("unknown drink '" + key + "'");
+        if (!open.get()) return false; // a closed tab's counters stay still, so close() can't be kept waiting
+        writesStarted.increment();     // before the second look at open, so close() can't miss this add
+        try {
+            if (!open.get()) return false;
+            Line mine = null;
+            for (int slot = 0; slot < MAX_LINES; slot++) {
+                Line seen = lines.get(slot);
+                if (seen == null) {
+                    if (mine == null) mine = new Line(key, variant);
+                    seen = lines.compareAndSet(slot, null, mine) ? mine : lines.get(slot);
+                }
+                if (seen.variant == variant && seen.key.equals(key)) {
+                    lineQty.getAndAdd(slot * STRIDE, qty);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            writesFinished.increment();
+        }
+    }
+
+    // Checkout's first step: stops new adds, waits out the ones under way and returns the final
+    // lines. Only one caller wins; the others get null.
+    public Snapshot close() {
+        if (!open.compareAndSet(true, false)) return null;
+        Snapshot last;
+        do {
+            last = read();
+            if (last == null) Thread.onSpinWait(); // an add that saw the tab open is finishing
+        } while (last == null);
+        return last;
+    }
+
+    // Checkout's last step when every line was filled: the tab never opens again
+    public void settle() { settled = true; }
+
+    // Lines checkout couldn't fill (out of stock) go back on the tab, which opens again
+    public void reopen(Snapshot unfilled) {
+        writesStarted.increment(); // readers retry rather than see the tab half rebuilt
+        try {
+            for (int slot = 0; slot < MAX_LINES; slot++) {
+                lines.set(slot, null);
+                lineQty.set(slot * STRIDE, 0);
+            }
+            for (int i = 0; i < unfilled.lines; i++) {
+                lines.set(i, new Line(unfilled.keys[i], unfilled.variants[i]));
+                lineQty.set(i * STRIDE, unfilled.qtys[i]);
+            }
+        } finally {
+            writesFinished.increment();
+        }
+        open.set(true);
+    }
+
+    // Exact when nobody is adding; while the tab is busy, the last of a few tries
+    public Snapshot snapshot() {
+        for (int attempt = 1; ; attempt++) {
+            Snapshot s = read();
+            if (s != null) return s;
+            if (attempt >= OPEN_READ_ATTEMPTS) return readAnyway();
+            Thread.onSpinWait();
+        }
+    }
+
+    // Null if a write overlapped the read: every write that started must have finished before
+    // the scan, and none may start during it
+    private Snapshot read() {
+        long finished = writesFinished.sum();
+        Snapshot s = readAnyway();
+        return writesStarted.sum() == finished ? s : null;
+    }
+
+    private Snapshot readAnyway() {
+        String[] keys = new String[MAX_LINES];
+        long[] variants = new long[MAX_LINES];
+        int[] qtys = new int[MAX_LINES];
+        int n = 0;
+        Line line;
+        for (int slot = 0; slot < MAX_LINES && (line = lines.get(slot)) != null; slot++) {
+            long qty = lineQty.get(slot * STRIDE);
+            if (qty == 0) continue; // claimed, first cups still on the way
+            keys[n] = line.key;
+            variants[n] = line.variant;
+            qtys[n] = (int) Math.min(Integer.MAX_VALUE, qty);
+            n++;
+        }
+        return new Snapshot(n, keys, variants, qtys);
+    }
+
+    public void printCart(PrintStream out) {
+        Snapshot s = snapshot();
+        if (s.lines == 0) {
+            out.println("\nThe '" + name + "' tab is empty ✨");
+            return;
+        }
+        Screen screen = Screen.begin();
+        screen.line().text("────────── ✧ TAB: ").text(name).text(" ✧ ──────────").line();
+        long subtotal = 0;
+        for (int i = 0; i < s.lines; i++) {
+            long lineTotal = (menu.getPriceForKey(s.keys[i]).centavos() + Modifiers.surcharge(s.variants[i])) * s.qtys[i];
+            subtotal += lineTotal;
+            screen.padRight(menu.getNameForKey(s.keys[i]), 28).text(" x").number(s.qtys[i]).text("    ")
+                    .money(lineTotal).line();
+            if (s.variants[i] != Modifiers.PLAIN) screen.text("  ").modifiers(s.variants[i]).line();
+        }
+        screen.line("-----------------------------------------");
+        screen.text("SUBTOTAL: ").money(subtotal).line();
+        screen.line("Promotions are taken off at checkout.");
+        screen.line("─────────────────────────────────────────");
+        screen.flushTo(out);
+    }
+}
+
+/**
+ * A cup's size and add-ons packed into one long: a flag per modifier in the low bits and the
+ * size ordinal in the top byte, so a plain regular cup is 0. Surcharges for every flag
+ * combination are worked out once into a table, so pricing any variant is two array reads.
+ */
+final class Modifiers {
+    static final long PLAIN = 0;
+    static final String[] SIZES = {"regular", "small", "large"}; // ordinal 0 is the default
+    private static final long[] SIZE_CENTAVOS = {0, -1500, 2500};
+    private static final int SIZE_SHIFT = 56;
+
+    // Bit i: the words a customer types (longest first), how the receipt shows it, its
+    // surcharge, and the group it excludes others from (one milk, one sweetness, one ice level)
+    private static final String[][] WORDS = {
+            {"oat milk", "oat"}, {"almond milk", "almond"}, {"soy milk", "soy"},
+            {"extra shot", "extra-shot"},
+            {"less sweet", "less-sweet"}, {"no sugar", "no-sugar"}, {"extra sweet", "extra-sweet"},
+            {"less ice", "less-ice"}, {"no ice", "no-ice"},
+    };
+    private static final String[] LABELS = {
+            "oat milk", "almond milk", "soy milk", "extra shot",
+            "less sweet", "no sugar", "extra sweet", "less ice", "no ice",
+    };
+    private static final long[] CENTAVOS = {2000, 2000, 1500, 3000, 0, 0, 1000, 0, 0};
+    private static final int[] GROUP = {1, 1, 1, 0, 2, 2, 2, 3, 3}; // 0: combines with anything
+    private static final long FLAGS = (1L << LABELS.length) - 1;
+    private static final long[] COMBO_CENTAVOS = new long[1 << LABELS.length];
+
+    static {
+        for (int combo = 1; combo < COMBO_CENTAVOS.length; combo++) {
+            int low = Integer.numberOfTrailingZeros(combo);
+            COMBO_CENTAVOS[combo] = COMBO_CENTAVOS[combo & (combo - 1)] + CENTAVOS[low];
+        }
+    }
+
+    private Modifiers() {}
+
+    public static int size(long variant) { return (int) (variant >>> SIZE_SHIFT); }
+
+    // What the size and add-ons add to (or, for a small, take off) one cup's list price
+    public static long surcharge(long variant) {
+        return SIZE_CENTAVOS[size(variant)] + COMBO_CENTAVOS[(int) (variant & FLAGS)];
+    }
+
+    // Consumes leading size and modifier words ("large oat milk extra shot ...")
+    public static long take(CommandTokenizer tokens) {
+        long variant = PLAIN;
+        boolean found = true;
+        while (found && !tokens.atEnd()) {
+            found = false;
+            for (int s = 0; s < SIZES.length && !found; s++) {
+                if (tokens.takeWord(SIZES[s])) {
+                    variant = (variant & FLAGS) | ((long) s << SIZE_SHIFT);
+                    found = true;
+                }
+            }
+            for (int bit = 0; bit < WORDS.length && !found; bit++) {
+                for (String w : WORDS[bit]) {
+                    if (tokens.takeWord(w)) {
+                        variant = with(variant, bit);
+                        found = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return variant;
+    }
+
+    private static long with(long variant, int bit) {
+        if (GROUP[bit] != 0) {
+            for (int other = 0; other < GROUP.length; other++) {
+                if (GROUP[other] == GROUP[bit]) variant &= ~(1L << other);
+            }
+        }
+        return variant | (1L << bit);
+    }
+
+    // "large, oat milk, extra shot"; empty for a plain regular cup
+    public static StringBuilder describe(StringBuilder sb, long variant) {
+        int start = sb.length();
+        if (size(variant) != 0) sb.append(SIZES[size(variant)]);
+        for (long flags = variant & FLAGS; flags != 0; flags &= flags - 1) {
+            if (sb.length() > start) sb.append(", ");
+            sb.append(LABELS[Long.numberOfTrailingZeros(flags)]);
+        }
+        return sb;
+    }
+
+    public static String describe(long variant) {
+        return variant == PLAIN ? "" : describe(new StringBuilder(), variant).toString();
+    }
+
+    // "+large+oat-milk", for machine-readable lines
+    public static StringBuilder appendCode(StringBuilder sb, long variant) {
+        if (size(variant) != 0) sb.append('+').append(SIZES[size(variant)]);
+        for (long flags = variant & FLAGS; flags != 0; flags &= flags - 1) {
+            sb.append('+').append(LABELS[Long.numberOfTrailingZeros(flags)].replace(' ', '-'));
+        }
+        return sb;
+    }
+}
+
+/**
+ * Builds one whole screen (menu, cart, receipt) in a StringBuilder and hands it to the sink
+ * in a single write, instead of one synchronized console call per line. The sink is whatever
+ * PrintStream the session writes to: the console, a socket or a file. Screen.begin() reuses
+ * one buffer per thread, and each session runs on its own thread.
+ */
+final class Screen {
+    private static final ThreadLocal<Screen> CURRENT = ThreadLocal.withInitial(Screen::new);
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final StringBuilder sb = new StringBuilder(1024);
+    private long startedAt;
+
+    static Screen begin() {
+        Screen screen = CURRENT.get();
+        screen.sb.setLength(0);
+        screen.startedAt = System.nanoTime();
+        return screen;
+    }
+
+    Screen text(String s) { sb.append(s); return this; }
+    Screen number(long n) { sb.append(n); return this; }
+    Screen modifiers(long variant) { Modifiers.describe(sb, variant); return this; }
+    Screen money(long centavos) { PesoFormat.append(sb, centavos); return this; }
+    Screen line() { sb.append(NEWLINE); return this; }
+    Screen line(String s) { return text(s).line(); }
+
+    // Like %-Ns: pads with spaces, never truncates
+    Screen padRight(String s, int width) {
+        sb.append(s);
+        for (int i = s.length(); i < width; i++) sb.append(' ');
+        return this;
+    }
+
+    void flushTo(PrintStream out) {
+        out.print(sb);
+        out.flush();
+        sb.setLength(0);
+        CafeMetrics.shared().record(CafeMetrics.Timer.RENDER, System.nanoTime() - startedAt);
+    }
+
+    @Override
+    public String toString() { return sb.toString(); }
+}
+
+/**
+ * Always-on counters and latency histograms for the café, shared by every session.
+ * Recording is a few atomic adds into preallocated arrays, so it never allocates and can stay
+ * on in production. Read it over JMX ({@code SipHappens:type=Metrics}) or, with
+ * {@code --metrics [port]}, as Prometheus text from {@code http://127.0.0.1:port/metrics}.
+ */
+final class CafeMetrics {
+    static final int DEFAULT_PORT = 9464;
+    private static final CafeMetrics SHARED = new CafeMetrics();
+
+    /** What a latency sample belongs to: a session command, or a stage inside one. */
+    enum Timer {
+        MENU("command", "menu"),
+        MOOD("command", "mood"),
+        ORDER("command", "order"),
+        CART("command", "cart"),
+        CHECKOUT("command", "checkout"),
+        REPORT("command", "report"),
+        STATUS("command", "status"),
+        HELP("command", "help"),
+        UNKNOWN("command", "unknown"),
+        BREW("stage", "brew"),
+        RENDER("stage", "render");
+
+        final String kind;
+        final String label;
+
+        Timer(String kind, String label) {
+            this.kind = kind;
+            this.label = label;
+        }
+    }
+
+    // Prometheus bucket bounds in seconds; the histograms themselves are much finer
+    private static final String[] EXPORT_BOUNDS = {"0.00001", "0.0001", "0.0005", "0.001", "0.005", "0.01", "0.05", "0.1", "0.5", "1", "5"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Timer.values().length];
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder items = new LongAdder();
+    private final LongAdder revenueCentavos = new LongAdder();
+    private final LongAdder invalidMoods = new LongAdder();
+    private final LongAdder cartAdds = new LongAdder();
+    private final LongAdder recommendationHits = new LongAdder();
+    private final LongAdder recommendationMisses = new LongAdder();
+    private final AtomicInteger openCarts = new AtomicInteger();
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private volatile long firstPromptMillis = -1;
+
+    private CafeMetrics() {
+        for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+    }
+
+    static CafeMetrics shared() { return SHARED; }
+
+    public void record(Timer timer, long nanos) { histograms[timer.ordinal()].record(nanos); }
+
+    public void orderCheckedOut(long itemCount, long totalCentavos) {
+        orders.increment();
+        items.add(itemCount);
+        revenueCentavos.add(totalCentavos);
+    }
+
+    public void cartAdd() { cartAdds.increment(); }
+    public void invalidMood() { invalidMoods.increment(); }
+    public void recommendationHit() { recommendationHits.increment(); }
+    public void recommendationMiss() { recommendationMisses.increment(); }
+    public void cartOpened() { openCarts.incrementAndGet(); }
+    public void cartClosed() { openCarts.decrementAndGet(); }
+    public void sessionOpened() { openSessions.incrementAndGet(); }
+    public void sessionClosed() { openSessions.decrementAndGet(); }
+    public void firstPrompt(long millisSinceJvmStart) { firstPromptMillis = millisSinceJvmStart; }
+
+    public LatencyHistogram histogram(Timer timer) { return histograms[timer.ordinal()]; }
+
+    // The bus subscriber: sales and brew times arrive as order events
+    public void onEvent(OrderEventBus.Event e) {
+        switch (e.kind) {
+            case ITEM_ADDED -> cartAdd();
+            case BREWED -> record(Timer.BREW, e.nanos);
+            case CHECKED_OUT -> {
+                long cups = 0;
+                for (int i = 0; i < e.lines; i++) cups += e.qtys[i];
+                orderCheckedOut(cups, e.total);
+            }
+        }
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder(8192);
+        appendHistograms(sb, "command", "Time spent serving each command, not counting time waiting on the customer.");
+        appendHistograms(sb, "stage", "Time spent in brewing and screen rendering.");
+        appendValue(sb, "siphappens_orders_total", "counter", "Orders checked out.", orders.sum());
+        appendValue(sb, "siphappens_items_total", "counter", "Drinks sold.", items.sum());
+        appendValue(sb, "siphappens_revenue_pesos_total", "counter", "Revenue from checked-out orders.", revenueCentavos.sum() / 100.0);
+        appendValue(sb, "siphappens_cart_adds_total", "counter", "Drinks put in a cart, sold or not.", cartAdds.sum());
+        appendValue(sb, "siphappens_invalid_moods_total", "counter", "Mood requests we could not read.", invalidMoods.sum());
+        appendValue(sb, "siphappens_usual_cache_hits_total", "counter", "Regulars' usuals served from the cache.", recommendationHits.sum());
+        appendValue(sb, "siphappens_usual_cache_misses_total", "counter", "Regulars' usuals worked out from their history.", recommendationMisses.sum());
+        appendValue(sb, "siphappens_open_carts", "gauge", "Carts holding at least one drink.", openCarts.get());
+        appendValue(sb, "siphappens_open_sessions", "gauge", "Customers currently at a till.", openSessions.get());
+        if (firstPromptMillis >= 0) {
+            appendValue(sb, "siphappens_first_prompt_seconds", "gauge", "From JVM start to the first prompt.", firstPromptMillis / 1000.0);
+        }
+        return sb.toString();
+    }
+
+    private void appendHistograms(StringBuilder sb, String kind, String help) {
+        String name = "siphappens_" + kind + "_seconds";
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        for (Timer timer : Timer.values()) {
+            if (!timer.kind.equals(kind)) continue;
+            LatencyHistogram h = histogram(timer);
+            String labels = kind + "=\"" + timer.label + "\"";
+            for (String bound : EXPORT_BOUNDS) {
+                sb.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ")
+                        .append(h.countAtMost((long) (Double.parseDouble(bound) * 1e9))).append('\n');
+            }
+            long count = h.count();
+            sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+            sb.append(name).append("_sum{").append(labels).append("} ").append(h.sumNanos() / 1e9).append('\n');
+            sb.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+        }
+    }
+
+    private static void appendValue(StringBuilder sb, String name, String type, String help, Number value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Serves GET /metrics on the loopback interface only
+    public void serveHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        // The dispatcher thread inherits daemon-ness from whoever starts it; it mustn't keep the café open
+        Thread starter = new Thread(server::start, "metrics-http-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.println("📈 Metrics on http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+    }
+
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("SipHappens:type=Metrics");
+            if (!server.isRegistered(name)) server.registerMBean(new MetricsMBean(), name);
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Log-linear histogram in the HdrHistogram style: 8 sub-buckets per power of two of
+     * nanoseconds, so any value is kept to within 12.5% from 1ns up to Long.MAX_VALUE in
+     * 488 fixed counters.
+     */
+    static final class LatencyHistogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            counts.incrementAndGet(indexOf(nanos));
+            total.increment();
+            sum.add(nanos);
+        }
+
+        long count() { return total.sum(); }
+        long sumNanos() { return sum.sum(); }
+
+        // A frozen copy, so a later minus(copy) covers only what was recorded since
+        LatencyHistogram copy() {
+            LatencyHistogram c = new LatencyHistogram();
+            for (int i = 0; i < BUCKETS; i++) c.counts.set(i, counts.get(i));
+            c.total.add(total.sum());
+            c.sum.add(sum.sum());
+            return c;
+        }
+
+        LatencyHistogram minus(LatencyHistogram earlier) {
+            LatencyHistogram d = new LatencyHistogram();
+            for (int i = 0; i < BUCKETS; i++) d.counts.set(i, counts.get(i) - earlier.counts.get(i));
+            d.total.add(total.sum() - earlier.total.sum());
+            d.sum.add(sum.sum() - earlier.sum.sum());
+            return d;
+        }
+
+        // Samples whose bucket lies entirely at or below the bound
+        long countAtMost(long nanos) {
+            long n = 0;
+            for (int i = 0; i < BUCKETS - 1 && lowestOf(i + 1) <= nanos + 1; i++) n += counts.get(i);
+            return n;
+        }
+
+        // Upper edge of the bucket holding the q-th quantile
+        long quantile(double q) {
+            long target = (long) Math.ceil(q * count());
+            if (target <= 0) return 0;
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= target) return i + 1 < BUCKETS ? lowestOf(i + 1) - 1 : Long.MAX_VALUE;
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private static int indexOf(long v) {
+            if (v < SUB_COUNT) return (int) v;
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        private static long lowestOf(int index) {
+            if (index < SUB_COUNT) return index;
+            int exp = index / SUB_COUNT + SUB_BITS - 1;
+            int sub = index % SUB_COUNT;
+            return (long) (SUB_COUNT + sub) << (exp - SUB_BITS);
+        }
+    }
+
+    // Dynamic rather than standard MBean so the class can stay package-private
+    private final class MetricsMBean implements DynamicMBean {
+        private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+
+        MetricsMBean() {
+            attributes.put("Orders", orders::sum);
+            attributes.put("Items", items::sum);
+            attributes.put("RevenueCentavos", revenueCentavos::sum);
+            attributes.put("InvalidMoods", invalidMoods::sum);
+            attributes.put("UsualCacheHits", recommendationHits::sum);
+            attributes.put("UsualCacheMisses", recommendationMisses::sum);
+            attributes.put("OpenCarts", () -> (long) openCarts.get());
+            attributes.put("OpenSessions", () -> (long) openSessions.get());
+            for (Timer timer : Timer.values()) {
+                LatencyHistogram h = histogram(timer);
+                String prefix = Character.toUpperCase(timer.label.charAt(0)) + timer.label.substring(1);
+                attributes.put(prefix + "Count", h::count);
+                attributes.put(prefix + "P50Micros", () -> h.quantile(0.50) / 1000);
+                attributes.put(prefix + "P99Micros", () -> h.quantile(0.99) / 1000);
+            }
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Supplier<Object> value = attributes.get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value.get();
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                Supplier<Object> value = attributes.get(name);
+                if (value != null) list.add(new Attribute(name, value.get()));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList list) { return new AttributeList(); }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[attributes.size()];
+            int i = 0;
+            for (String name : attributes.keySet()) {
+                infos[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(CafeMetrics.class.getName(), "Sip Happens café metrics", infos, null, null, null);
+        }
+    }
+}
+
+/**
+ * Promotions: happy hours, bundles, a mood of the day and loyalty tiers, read from a
+ * {@code promos.txt} style file. The per-drink rules are compiled into flat tables (best
+ * discount per drink, bundle sides as bit masks) for the current catalog and minute of the
+ * day, so an Order can keep its discounts up to date as items are added instead of
+ * re-pricing the whole cart. Loyalty is a percentage off the finished order.
+ */
+final class PricingEngine {
+    enum Kind { HAPPY_HOUR, BUNDLE, MOOD_OF_THE_DAY, LOYALTY }
+
+    static final class Rule {
+        final Kind kind;
+        final String label;
+        final String target;        // drink type, name, key or word; a mood; or "a + b" for bundles
+        final int fromMinute;       // happy hours: minutes since midnight, [from, to), wrapping past midnight
+        final int toMinute;
+        final DayOfWeek day;        // mood of the day: null means every day
+        final int minVisits;        // loyalty tiers
+        final int percent;          // either a percentage...
+        final long centavosOff;     // ...or a fixed amount off
+
+        private Rule(Kind kind, String label, String target, int fromMinute, int toMinute, DayOfWeek day,
+                     int minVisits, int percent, long centavosOff) {
+            this.kind = kind;
+            this.label = label;
+            this.target = target;
+            this.fromMinute = fromMinute;
+            this.toMinute = toMinute;
+            this.day = day;
+            this.minVisits = minVisits;
+            this.percent = percent;
+            this.centavosOff = centavosOff;
+        }
+
+        // 22:00-02:00 runs through midnight
+        boolean covers(int minute) {
+            return fromMinute < toMinute ? minute >= fromMinute && minute < toMinute : minute >= fromMinute || minute < toMinute;
+        }
+
+        long discountOn(long centavos) {
+            return percent > 0 ? centavos * percent / 100 : Math.min(centavos, centavosOff);
+        }
+    }
+
+    /** The rules as they apply right now, one slot per drink key. */
+    static final class Table {
+        final long catalogVersion;
+        final long validUntil;
+        final Map<String, Integer> slotByKey = new HashMap<>();
+        final long[] unitDiscount;  // best per-cup discount
+        final int[] unitRule;       // which rule gives it, -1 for none
+        final long[] bundleLeft;    // bit r set: the drink counts towards the left side of bundle rule r
+        final long[] bundleRight;
+
+        private Table(long catalogVersion, long validUntil, int drinks) {
+            this.catalogVersion = catalogVersion;
+            this.validUntil = validUntil;
+            unitDiscount = new long[drinks];
+            unitRule = new int[drinks];
+            bundleLeft = new long[drinks];
+            bundleRight = new long[drinks];
+            Arrays.fill(unitRule, -1);
+        }
+
+        int slot(String key) {
+            Integer slot = slotByKey.get(key);
+            return slot == null ? -1 : slot;
+        }
+    }
+
+    private final CatalogStore catalog;
+    private final CustomerHistory history;
+    private final List<Rule> rules;
+    private volatile Table table;
+
+    private PricingEngine(CatalogStore catalog, CustomerHistory history, List<Rule> rules) {
+        this.catalog = catalog;
+        this.history = history;
+        this.rules = List.copyOf(rules);
+    }
+
+    public int ruleCount() { return rules.size(); }
+    public Rule rule(int index) { return rules.get(index); }
+
+    /** The compiled table for this minute; recompiled when the minute or the catalog changes. */
+    public Table current() {
+        Table t = table;
+        long now = System.currentTimeMillis();
+        Catalog c = catalog.current();
+        if (t == null || now >= t.validUntil || t.catalogVersion != c.getVersion()) {
+            t = compile(c, now);
+            table = t;
+        }
+        return t;
+    }
+
+    /** The best loyalty tier this customer has reached, or null. */
+    public Rule loyaltyFor(String name) {
+        int visits = history == null ? 0 : history.visits(name);
+        Rule best = null;
+        for (Rule r : rules) {
+            if (r.kind == Kind.LOYALTY && visits >= r.minVisits && (best == null || r.minVisits > best.minVisits)) best = r;
+        }
+        return best;
+    }
+
+    private Table compile(Catalog c, long now) {
+        ZonedDateTime at = Instant.ofEpochMilli(now).atZone(ZoneId.systemDefault());
+        int minute = at.getHour() * 60 + at.getMinute();
+        long validUntil = at.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1).toInstant().toEpochMilli();
+        RecipeCatalog recipes = c.getRecipes();
+        Table t = new Table(c.getVersion(), validUntil, recipes.size());
+        for (int d = 0; d < recipes.size(); d++) {
+            Recipe recipe = recipes.at(d);
+            String key = recipe.getKey();
+            t.slotByKey.put(key, d);
+            long price = c.getPriceForKey(key).centavos();
+            for (int r = 0; r < rules.size(); r++) {
+                Rule rule = rules.get(r);
+                boolean applies;
+                switch (rule.kind) {
+                    case HAPPY_HOUR:
+                        applies = rule.covers(minute) && matches(rule.target, recipe, recipes);
+                        break;
+                    case MOOD_OF_THE_DAY:
+                        applies = (rule.day == null || rule.day == at.getDayOfWeek()) && rule.target.equals(c.getMoodForKey(key));
+                        break;
+                    case BUNDLE:
+                        int plus = rule.target.indexOf('+');
+                        if (matches(rule.target.substring(0, plus).trim(), recipe, recipes)) t.bundleLeft[d] |= 1L << r;
+                        else if (matches(rule.target.substring(plus + 1).trim(), recipe, recipes)) t.bundleRight[d] |= 1L << r;
+                        applies = false;
+                        break;
+                    default:
+                        applies = false;
+                }
+                if (applies && rule.discountOn(price) > t.unitDiscount[d]) {
+                    t.unitDiscount[d] = rule.discountOn(price);
+                    t.unitRule[d] = r;
+                }
+            }
+        }
+        return t;
+    }
+
+    // "*", a drink type, a drink key or name, or a word in the drink's name
+    private static boolean matches(String target, Recipe recipe, RecipeCatalog recipes) {
+        if (target.equals("*")) return true;
+        String type = recipes.prototype(recipe.getKey()).getClass().getSimpleName();
+        if (target.equalsIgnoreCase(type) || target.equalsIgnoreCase(recipe.getKey()) || target.equalsIgnoreCase(recipe.getName())) {
+            return true;
+        }
+        for (String word : recipe.getName().split(" ")) {
+            if (word.equalsIgnoreCase(target)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads {@code kind | applies to | when | discount} lines, for example
+     * {@code happy-hour | Coffee | 14:00-16:00 | 20%}, {@code bundle | matcha + smoothie | | ₱30},
+     * {@code mood-of-the-day | anxious | mon | 15%} or {@code loyalty | Gold | 10 visits | 10%}.
+     */
+    static PricingEngine load(Path file, CatalogStore catalog, CustomerHistory history) throws IOException {
+        List<Rule> rules = new ArrayList<>();
+        int lineNo = 0;
+        for (String raw : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNo++;
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\|", -1);
+            if (f.length != 4) throw new IOException(file + " line " + lineNo + ": expected 'kind | applies to | when | discount'");
+            try {
+                rules.add(parseRule(f[0].trim().toLowerCase(Locale.ROOT), f[1].trim(), f[2].trim(), f[3].trim()));
+            } catch (IllegalArgumentException | ArithmeticException | DateTimeException e) {
+                throw new IOException(file + " line " + lineNo + ": " + e.getMessage());
+            }
+            if (rules.size() > 64) throw new IOException(file + ": at most 64 promotions are supported");
+        }
+        return new PricingEngine(catalog, history, rules);
+    }
+
+    private static Rule parseRule(String kind, String target, String when, String discount) {
+        int percent = 0;
+        long off = 0;
+        if (discount.endsWith("%")) {
+            percent = Integer.parseInt(discount.substring(0, discount.length() - 1).trim());
+            if (percent <= 0 || percent > 100) throw new IllegalArgumentException("discount must be 1-100%");
+        } else {
+            off = new BigDecimal(discount.replace("₱", "").replace(",", "").trim()).movePointRight(2).longValueExact();
+            if (off <= 0) throw new IllegalArgumentException("discount must be more than ₱0");
+        }
+        String amount = percent > 0 ? percent + "%" : PesoFormat.format(off);
+        switch (kind) {
+            case "happy-hour": {
+                String[] range = when.split("-");
+                if (range.length != 2) throw new IllegalArgumentException("happy hours need a time range like 14:00-16:00");
+                LocalTime from = LocalTime.parse(range[0].trim());
+                LocalTime to = LocalTime.parse(range[1].trim());
+                if (from.equals(to)) throw new IllegalArgumentException("happy hour " + when + " starts and ends at the same time");
+                return new Rule(Kind.HAPPY_HOUR, "Happy hour: " + target + " " + amount, target,
+                        from.getHour() * 60 + from.getMinute(), to.getHour() * 60 + to.getMinute(), null, 0, percent, off);
+            }
+            case "bundle":
+                if (target.indexOf('+') < 0) throw new IllegalArgumentException("bundles pair two groups, like 'matcha + smoothie'");
+                if (percent > 0) throw new IllegalArgumentException("bundle discounts are a peso amount per pair");
+                return new Rule(Kind.BUNDLE, "Bundle: " + target, target, 0, 0, null, 0, 0, off);
+            case "mood-of-the-day": {
+                DayOfWeek day = null;
+                if (!when.isEmpty() && !when.equals("*")) {
+                    day = Arrays.stream(DayOfWeek.values())
+                            .filter(d -> d.name().regionMatches(true, 0, when, 0, Math.max(3, when.length())))
+                            .findFirst().orElseThrow(() -> new IllegalArgumentException("unknown day '" + when + "'"));
+                }
+                return new Rule(Kind.MOOD_OF_THE_DAY, "Mood of the day: " + target + " " + amount,
+                        target.toLowerCase(Locale.ROOT), 0, 0, day, 0, percent, off);
+            }
+            case "loyalty": {
+                if (percent == 0) throw new IllegalArgumentException("loyalty tiers are a percentage off the order");
+                int visits = Integer.parseInt(when.replace("visits", "").replace("visit", "").trim());
+                return new Rule(Kind.LOYALTY, target + " member " + amount, target, 0, 0, null, visits, percent, 0);
+            }
+            default:
+                throw new IllegalArgumentException("unknown promotion '" + kind + "'");
+        }
+    }
+}
+
+/**
+ * Ingredient stock, counted in portions (one portion of each recipe ingredient per drink).
+ * Adding a drink to a cart reserves its portions, checkout commits them and an abandoned cart
+ * releases them. Each ingredient's count is a CAS-updated slot in an AtomicLongArray, padded
+ * onto its own cache line, so tills contending on "oat milk" never take a lock and don't
+ * slow down tills pouring espresso. Ingredients missing from the stock file are not tracked.
+ */
+final class Inventory {
+    private static final int PAD = 8; // 8 longs = one 64-byte cache line per ingredient
+
+    /** Portions held for one cart line; hand it back to commit() or release(). */
+    static final class Reservation {
+        private final int[] slots;
+        private final int qty;
+
+        private Reservation(int[] slots, int qty) {
+            this.slots = slots;
+            this.qty = qty;
+        }
+    }
+
+    private final CatalogStore catalog;
+    private final String[] names;
+    private final Map<String, Integer> slotByName;
+    private final long[] startingLevel;
+    private final long[] lowLevel;
+    private final AtomicLongArray available;
+    private final AtomicIntegerArray lowRaised;
+    private final LongAdder[] used;
+    private final Consumer<String> lowStockListener;
+
+    Inventory(CatalogStore catalog, Map<String, Long> stock, Consumer<String> lowStockListener) {
+        this.catalog = catalog;
+        this.lowStockListener = lowStockListener;
+        int n = stock.size();
+        names = new String[n];
+        slotByName = new HashMap<>();
+        startingLevel = new long[n];
+        lowLevel = new long[n];
+        available = new AtomicLongArray(n * PAD);
+        lowRaised = new AtomicIntegerArray(n * PAD);
+        used = new LongAdder[n];
+        int slot = 0;
+        for (Map.Entry<String, Long> e : stock.entrySet()) {
+            names[slot] = e.getKey();
+            slotByName.put(e.getKey(), slot);
+            startingLevel[slot] = e.getValue();
+            lowLevel[slot] = Math.max(1, e.getValue() / 10);
+            available.set(slot * PAD, e.getValue());
+            used[slot] = new LongAdder();
+            slot++;
+        }
+    }
+
+    /** Reads {@code ingredient = portions} lines; blank lines and # comments are skipped. */
+    static Inventory load(Path file, CatalogStore catalog) throws IOException {
+        Map<String, Long> stock = new LinkedHashMap<>();
+        int lineNo = 0;
+        for (String raw : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNo++;
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int eq = line.indexOf('=');
+            try {
+                if (eq < 0) throw new NumberFormatException();
+                long portions = Long.parseLong(line.substring(eq + 1).trim());
+                if (portions < 0) throw new NumberFormatException();
+                stock.put(line.substring(0, eq).trim().toLowerCase(), portions);
+            } catch (NumberFormatException e) {
+                throw new IOException(file + " line " + lineNo + ": expected 'ingredient = portions'");
+            }
+        }
+        return new Inventory(catalog, stock, msg -> System.err.println("⚠ " + msg));
+    }
+
+    /** Holds qty portions of every tracked ingredient in the drink, or returns null if any is short. */
+    public Reservation reserve(String key, int qty) {
+        int[] slots = slotsFor(key);
+        for (int i = 0; i < slots.length; i++) {
+            if (!take(slots[i], qty)) {
+                for (int j = 0; j < i; j++) give(slots[j], qty);
+                return null;
+            }
+        }
+        return new Reservation(slots, qty);
+    }
+
+    public void commit(Reservation r) {
+        for (int slot : r.slots) used[slot].add(r.qty);
+    }
+
+    public void release(Reservation r) {
+        for (int slot : r.slots) give(slot, r.qty);
+    }
+
+    // First tracked ingredient that can't cover qty more drinks, or null
+    public String shortIngredient(String key, int qty) {
+        for (int slot : slotsFor(key)) {
+            if (available.get(slot * PAD) < qty) return names[slot];
+        }
+        return null;
+    }
+
+    // A drink of the same type (or failing that, any drink) that can still be made
+    public String findSubstitute(String key, int qty) {
+        RecipeCatalog recipes = catalog.current().getRecipes();
+        Class<?> type = recipes.prototype(key).getClass();
+        String fallback = null;
+        for (Recipe r : recipes.all()) {
+            if (r.getKey().equals(key) || shortIngredient(r.getKey(), qty) != null) continue;
+            if (recipes.prototype(r.getKey()).getClass() == type) return r.getKey();
+            if (fallback == null) fallback = r.getKey();
+        }
+        return fallback;
+    }
+
+    // Portions of a tracked ingredient still free, and used by checkouts; -1 when it isn't tracked
+    public long portionsLeft(String ingredient) {
+        Integer slot = slotByName.get(ingredient.toLowerCase());
+        return slot == null ? -1 : available.get(slot * PAD);
+    }
+
+    public long portionsUsed(String ingredient) {
+        Integer slot = slotByName.get(ingredient.toLowerCase());
+        return slot == null ? -1 : used[slot].sum();
+    }
+
+    public void printStatus(PrintStream out) {
+        Screen screen = Screen.begin();
+        screen.line().line("────────── ✧ PANTRY ✧ ──────────");
+        for (int slot = 0; slot < names.length; slot++) {
+            long left = available.get(slot * PAD);
+            screen.padRight(names[slot], 20).text(" ").number(left).text(" / ").number(startingLevel[slot])
+                    .text("   used ").number(used[slot].sum());
+            if (left <= lowLevel[slot]) screen.text(left == 0 ? "   OUT" : "   low");
+            screen.line();
+        }
+        screen.line("────────────────────────────────");
+        screen.flushTo(out);
+    }
+
+    private boolean take(int slot, long n) {
+        int i = slot * PAD;
+        while (true) {
+            long cur = available.get(i);
+            if (cur < n) return false;
+            if (available.compareAndSet(i, cur, cur - n)) {
+                if (cur - n <= lowLevel[slot] && lowRaised.compareAndSet(i, 0, 1)) {
+                    lowStockListener.accept("Low stock: " + names[slot] + " (" + (cur - n) + " portions left)");
+                }
+                return true;
+            }
+        }
+    }
+
+    private void give(int slot, long n) {
+        int i = slot * PAD;
+        if (available.addAndGet(i, n) > lowLevel[slot]) lowRaised.set(i, 0);
+    }
+
+    private int[] slotsFor(String key) {
+        RecipeCatalog recipes = catalog.current().getRecipes();
+        if (!recipes.contains(key)) return new int[0];
+        List<String> ingredients = recipes.get(key).getIngredients();
+        int[] slots = new int[ingredients.size()];
+        int n = 0;
+        for (String ing : ingredients) {
+            Integer slot = slotByName.get(ing.toLowerCase());
+            if (slot != null) slots[n++] = slot;
+        }
+        return n == slots.length ? slots : Arrays.copyOf(slots, n);
+    }
+}
+
+/**
+ * Walks one input line of pipelined commands without regex or substrings: ';' separates
+ * commands, ',' separates the items of an order list, and words and names come back as
+ * CharSequence views over the line. One tokenizer is reused for every line of a session.
+ */
+final class CommandTokenizer {
+    private String line = "";
+    private int next;          // where the next command starts
+    private int commandEnd;
+    private int limit;         // end of the current item, or of the command outside item lists
+    private int cursor;
+    private boolean inItems;
+
+    CommandTokenizer reset(String line) {
+        this.line = line;
+        next = 0;
+        commandEnd = limit = cursor = 0;
+        return this;
+    }
+
+    // Moves to the next non-empty ';'-separated command; false once the line is used up
+    boolean nextCommand() {
+        while (next <= line.length()) {
+            int start = next;
+            int end = indexOf(';', start, line.length());
+            next = end + 1;
+            start = skipSpace(start, end);
+            if (start < end) {
+                commandEnd = limit = trimEnd(start, end);
+                cursor = start;
+                inItems = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Moves to the next ','-separated item of the current command; false after the last one
+    boolean nextItem() {
+        int start = inItems ? limit + 1 : cursor;
+        inItems = true;
+        if (start > commandEnd) return false;
+        int end = indexOf(',', start, commandEnd);
+        cursor = skipSpace(start, end);
+        limit = trimEnd(cursor, end);
+        return true;
+    }
+
+    // True when the command starts like "2x ..." or "2 ...", i.e. it is an order list
+    boolean atQuantity() {
+        return quantityEnd() > 0;
+    }
+
+    // Consumes a leading "2x" / "2 x" / "2"; -1 when there isn't one
+    int quantity() {
+        int end = quantityEnd();
+        if (end < 0) return -1;
+        int n = 0;
+        for (int i = cursor; i < limit && Character.isDigit(line.charAt(i)); i++) {
+            n = Math.min(999, n * 10 + (line.charAt(i) - '0'));
+        }
+        cursor = skipSpace(end, limit);
+        return n;
+    }
+
+    // Consumes the next word if it is w (any case)
+    boolean takeWord(String w) {
+        int end = cursor + w.length();
+        if (end > limit || !line.regionMatches(true, cursor, w, 0, w.length())) return false;
+        if (end < limit && !Character.isWhitespace(line.charAt(end))) return false;
+        cursor = skipSpace(end, limit);
+        return true;
+    }
+
+    boolean atEnd() { return cursor >= limit; }
+
+    // Everything left in the current item or command, trimmed
+    CharSequence rest() { return CharBuffer.wrap(line, cursor, limit); }
+
+    private int quantityEnd() {
+        int i = cursor;
+        while (i < limit && Character.isDigit(line.charAt(i))) i++;
+        if (i == cursor) return -1;
+        int j = skipSpace(i, limit);
+        if (j < limit && (line.charAt(j) == 'x' || line.charAt(j) == 'X' || line.charAt(j) == '×')) {
+            if (j + 1 == limit || Character.isWhitespace(line.charAt(j + 1))) return j + 1;
+        }
+        return j > i && j < limit ? i : -1; // a bare number needs a name after it
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) if (line.charAt(i) == c) return i;
+        return to;
+    }
+
+    private int skipSpace(int from, int to) {
+        while (from < to && Character.isWhitespace(line.charAt(from))) from++;
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && Character.isWhitespace(line.charAt(to - 1))) to--;
+        return to;
+    }
+}
+
+/**
+ * Disruptor-style ring buffer for order events. Slots are allocated once and reused; any
+ * session may publish (claiming a sequence with one atomic increment), and every subscriber
+ * sees every event on its own thread, in order, in batches of whatever has piled up. A
+ * publisher that laps the slowest subscriber waits for it, which is the backpressure.
+ * Publishing is a no-op until the bus is started, so benchmarks run without consumers.
+ */
+final class OrderEventBus {
+    static final int RING_SIZE = 4096;
+    private static final long MIN_IDLE_NANOS = 100_000;
+    private static final long MAX_IDLE_NANOS = 10_000_000;
+    private static final OrderEventBus SHARED = new OrderEventBus(RING_SIZE);
+
+    enum Kind { ITEM_ADDED, CHECKED_OUT, BREWED }
+
+    /** One reusable slot; which fields mean something depends on the kind. */
+    static final class Event {
+        Kind kind;
+        long sequence;
+        long timestamp;
+        String customer;  // ITEM_ADDED, CHECKED_OUT
+        String item;      // ITEM_ADDED: drink key; BREWED: drink name
+        int qty;          // ITEM_ADDED
+        long nanos;       // BREWED: from order to ready
+        long total;       // CHECKED_OUT, after discounts
+        long number;      // CHECKED_OUT: order number since the café opened
+        int lines;        // CHECKED_OUT: how many of the arrays below are in use
+        String[] keys = new String[8];
+        long[] variants = new long[8]; // size and add-ons, see Modifiers
+        int[] qtys = new int[8];
+        long[] lineTotals = new long[8];
+
+        void ensureLines(int n) {
+            if (n <= keys.length) return;
+            keys = Arrays.copyOf(keys, n);
+            variants = Arrays.copyOf(variants, n);
+            qtys = Arrays.copyOf(qtys, n);
+            lineTotals = Arrays.copyOf(lineTotals, n);
+        }
+    }
+
+    interface Handler {
+        void onEvent(Event event, boolean endOfBatch) throws Exception;
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong checkouts = new AtomicLong();
+    private final AtomicLongArray published; // sequence last published into each slot
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private volatile boolean running;
+
+    OrderEventBus(int size) { // a power of two; the café uses shared()
+        ring = new Event[size];
+        for (int i = 0; i < size; i++) ring[i] = new Event();
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) published.set(i, -1);
+    }
+
+    static OrderEventBus shared() { return SHARED; }
+
+    public synchronized void subscribe(String name, Handler handler) {
+        if (running) throw new IllegalStateException("subscribe before start()");
+        subscribers.add(new Subscriber(name, handler));
+    }
+
+    public synchronized void start() {
+        if (running) return;
+        running = true;
+        for (Subscriber s : subscribers) s.thread.start();
+    }
+
+    public void itemAdded(String customer, String key, int qty) {
+        if (!running) return;
+        long seq = claim();
+        Event e = ring[(int) seq & mask];
+        e.kind = Kind.ITEM_ADDED;
+        e.customer = customer;
+        e.item = key;
+        e.qty = qty;
+        publish(seq, e);
+    }
+
+    public void checkedOut(Order order, long total) {
+        if (!running) return;
+        long seq = claim();
+        Event e = ring[(int) seq & mask];
+        e.kind = Kind.CHECKED_OUT;
+        e.number = checkouts.incrementAndGet();
+        e.customer = order.getCustomerName();
+        e.total = total;
+        int n = order.lineCount();
+        e.ensureLines(n);
+        for (int i = 0; i < n; i++) {
+            e.keys[i] = order.lineKey(i);
+            e.variants[i] = order.lineVariant(i);
+            e.qtys[i] = order.lineQty(i);
+            e.lineTotals[i] = order.lineTotal(i);
+        }
+        e.lines = n;
+        publish(seq, e);
+    }
+
+    public void brewed(String drinkName, long nanos) {
+        if (!running) return;
+        long seq = claim();
+        Event e = ring[(int) seq & mask];
+        e.kind = Kind.BREWED;
+        e.item = drinkName;
+        e.nanos = nanos;
+        publish(seq, e);
+    }
+
+    /** Waits until every subscriber has handled everything published so far. */
+    public void flush() {
+        long target = claimed.get();
+        while (running && slowest() < target) LockSupport.parkNanos(100_000);
+    }
+
+    /** Lets the subscribers finish what is already published, then stops them. */
+    public void close() {
+        flush();
+        synchronized (this) {
+            running = false;
+        }
+        for (Subscriber s : subscribers) {
+            LockSupport.unpark(s.thread);
+            try {
+                s.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private long claim() {
+        long seq = claimed.incrementAndGet();
+        // Backpressure: don't overwrite a slot someone hasn't read yet
+        for (int spins = 0; seq - ring.length > slowest(); spins++) {
+            if (spins < 100) Thread.onSpinWait(); else LockSupport.parkNanos(10_000);
+        }
+        return seq;
+    }
+
+    private void publish(long seq, Event e) {
+        e.sequence = seq;
+        e.timestamp = System.currentTimeMillis();
+        published.set((int) seq & mask, seq);
+        // Only a checkout is worth waking an idle subscriber for; cart adds and brews wait for
+        // its next look, so they arrive in batches instead of costing a wakeup each
+        if (e.kind != Kind.CHECKED_OUT) return;
+        for (int i = 0; i < subscribers.size(); i++) {
+            Subscriber s = subscribers.get(i);
+            if (s.sleeping) LockSupport.unpark(s.thread);
+        }
+    }
+
+    private long slowest() {
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < subscribers.size(); i++) min = Math.min(min, subscribers.get(i).sequence.get());
+        return min == Long.MAX_VALUE ? claimed.get() : min;
+    }
+
+    private final class Subscriber implements Runnable {
+        final String name;
+        final Handler handler;
+        final AtomicLong sequence = new AtomicLong(-1); // last event handled
+        final Thread thread;
+        volatile boolean sleeping;
+
+        Subscriber(String name, Handler handler) {
+            this.name = name;
+            this.handler = handler;
+            this.thread = new Thread(this, "events-" + name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            long idleNanos = MIN_IDLE_NANOS;
+            while (true) {
+                long last = next - 1;
+                while (published.get((int) (last + 1) & mask) == last + 1) last++;
+                if (last < next) {
+                    if (!running) return;
+                    sleeping = true;
+                    if (published.get((int) next & mask) != next) LockSupport.parkNanos(idleNanos);
+                    sleeping = false;
+                    idleNanos = Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+                    continue;
+                }
+                idleNanos = MIN_IDLE_NANOS;
+                for (long seq = next; seq <= last; seq++) {
+                    try {
+                        handler.onEvent(ring[(int) seq & mask], seq == last);
+                    } catch (Exception ex) {
+                        System.err.println("⚠ " + name + " could not handle an order event: " + ex.getMessage());
+                    }
+                }
+                sequence.lazySet(last);
+                next = last + 1;
+            }
+        }
+    }
+}
+
+/**
+ * What the baristas see over the counter: the last few checked-out orders and the drinks that
+ * just came off the stations. Fed by the event bus; the 'board' command shows it.
+ */
+final class KitchenDisplay implements OrderEventBus.Handler {
+    private static final int SHOWN = 6;
+    private static final KitchenDisplay SHARED = new KitchenDisplay();
+
+    // Keys are kept as-is and named when the board is shown, so a catalog reload is picked up
+    private static final class Shown {
+        final String label;
+        final String[] keys;
+        final long[] variants;
+        final int[] qtys;
+
+        Shown(String label, String[] keys, long[] variants, int[] qtys) {
+            this.label = label;
+            this.keys = keys;
+            this.variants = variants;
+            this.qtys = qtys;
+        }
+    }
+
+    private final ArrayDeque<Shown> orders = new ArrayDeque<>();
+    private final ArrayDeque<String> brewed = new ArrayDeque<>();
+
+    static KitchenDisplay shared() { return SHARED; }
+
+    @Override
+    public synchronized void onEvent(OrderEventBus.Event e, boolean endOfBatch) {
+        if (e.kind == OrderEventBus.Kind.CHECKED_OUT) {
+            // The slot is reused, so keep copies
+            push(orders, new Shown("#" + e.number + " " + e.customer,
+                    Arrays.copyOf(e.keys, e.lines), Arrays.copyOf(e.variants, e.lines), Arrays.copyOf(e.qtys, e.lines)));
+        } else if (e.kind == OrderEventBus.Kind.BREWED) {
+            push(brewed, e.item);
+        }
+    }
+
+    public synchronized void print(PrintStream out, Menu menu) {
+        Screen screen = Screen.begin();
+        screen.line().line("────────── ✧ KITCHEN BOARD ✧ ──────────");
+        if (orders.isEmpty()) screen.line("No orders yet.");
+        for (Shown o : orders) {
+            screen.text(o.label).text(":");
+            for (int i = 0; i < o.keys.length; i++) {
+                screen.text(i == 0 ? " " : ", ").number(o.qtys[i]).text("x ").text(menu.getNameForKey(o.keys[i]));
+                if (o.variants[i] != Modifiers.PLAIN) screen.text(" (").modifiers(o.variants[i]).text(")");
+            }
+            screen.line();
+        }
+        if (!brewed.isEmpty()) screen.text("Just brewed: ").text(String.join(", ", brewed)).line();
+        screen.line("───────────────────────────────────────");
+        screen.flushTo(out);
+    }
+
+    private static <T> void push(ArrayDeque<T> shown, T line) {
+        shown.addFirst(line);
+        if (shown.size() > SHOWN) shown.removeLast();
+    }
+}
+
+/**
+ * Stands in for the receipt printer: appends a plain-text copy of every receipt to a file,
+ * flushing once per batch of events rather than once per receipt.
+ */
+final class ReceiptPrinter implements OrderEventBus.Handler {
+    private final BufferedWriter writer;
+    private final Menu menu;
+
+    ReceiptPrinter(Path file, Menu menu) throws IOException {
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.menu = menu;
+    }
+
+    @Override
+    public void onEvent(OrderEventBus.Event e, boolean endOfBatch) throws IOException {
+        if (e.kind == OrderEventBus.Kind.CHECKED_OUT) {
+            Screen screen = Screen.begin();
+            screen.text("Order #").number(e.number).text(" — ").text(e.customer).line();
+            for (int i = 0; i < e.lines; i++) {
+                screen.padRight(menu.getNameForKey(e.keys[i]), 28).text(" x").number(e.qtys[i])
+                        .text("    ").money(e.lineTotals[i]).line();
+                if (e.variants[i] != Modifiers.PLAIN) screen.text("  ").modifiers(e.variants[i]).line();
+            }
+            screen.text("TOTAL                         ").money(e.total).line().line();
+            writer.write(screen.toString());
+        }
+        if (endOfBatch) writer.flush();
+    }
+}
+
+/**
+ * Append-only binary log of checked-out orders, so sales survive a restart.
+ *
+ * Layout: a 16-byte header ("SIPJ", format version, creation time) followed by records of
+ * [int payload length][int CRC32 of payload][payload]. A payload holds the timestamp, customer
+ * name, each item's key, quantity and line total in centavos, and the order total.
+ *
+ * Appends go straight to the page cache; a background thread forces them to disk every
+ * {@link #SYNC_INTERVAL_MILLIS} ms (group commit), so checkout never waits for an fsync.
+ * On open, a torn or corrupt tail record left by a crash is truncated away.
+ */
+final class OrderJournal implements AutoCloseable {
+    static final String DEFAULT_FILE = "sip-happens.journal";
+    static final int MAGIC = 0x5349504A; // "SIPJ"
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final int MAX_STRING_CHARS = Short.MAX_VALUE / 3;
+    private static final long SYNC_INTERVAL_MILLIS = 50;
+
+    private final Path path;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(4096); // grown for the rare big order
+    private final CRC32 crc = new CRC32();
+    private final Thread syncer;
+    private volatile boolean dirty;
+    private volatile boolean closed;
+    private long records;
+    private long truncatedBytes;
+    private long recoveredEnd = HEADER_BYTES; // where the records found on open stop
+
+    private OrderJournal(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+        this.syncer = new Thread(this::syncLoop, "journal-sync");
+        syncer.setDaemon(true);
+    }
+
+    public static OrderJournal open(Path path) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        OrderJournal journal = new OrderJournal(path, ch);
+        try {
+            journal.recover();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        journal.syncer.start();
+        return journal;
+    }
+
+    public Path getPath() { return path; }
+    public synchronized long getRecordCount() { return records; }
+    public synchronized long getTruncatedBytes() { return truncatedBytes; }
+
+    // One checked-out order, as carried by an OrderEventBus CHECKED_OUT event
+    public void append(OrderEventBus.Event order) throws IOException {
+        synchronized (this) {
+            if (closed) throw new IOException("journal is closed");
+            int needed = maxRecordBytes(order);
+            if (needed > MAX_RECORD_BYTES || order.lines > Short.MAX_VALUE) throw new IOException("order too large for one journal record");
+            if (buffer.capacity() < needed) buffer = ByteBuffer.allocate(Math.max(needed, buffer.capacity() * 2));
+            buffer.clear();
+            buffer.position(8); // length + crc, filled in below
+            buffer.putLong(order.timestamp);
+            putString(order.customer);
+            buffer.putShort((short) order.lines);
+            for (int i = 0; i < order.lines; i++) {
+                putString(order.keys[i]);
+                buffer.putInt(order.qtys[i]);
+                buffer.putLong(order.lineTotals[i]);
+            }
+            buffer.putLong(order.total);
+
+            int payload = buffer.position() - 8;
+            crc.reset();
+            crc.update(buffer.array(), 8, payload);
+            buffer.putInt(0, payload);
+            buffer.putInt(4, (int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            records++;
+            dirty = true;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        syncer.interrupt();
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException ignored) {
+            // nothing more we can do on the way out
+        }
+    }
+
+    /**
+     * Reads back the records that were in the file when it was opened, in order, each checked
+     * against its CRC. Orders appended since are left out, so a reader running alongside live
+     * checkouts never sees one twice. {@code each} gets the same Event every time, refilled.
+     */
+    public void replay(Consumer<OrderEventBus.Event> each) throws IOException {
+        long end;
+        synchronized (this) {
+            end = recoveredEnd;
+        }
+        OrderEventBus.Event order = new OrderEventBus.Event();
+        order.kind = OrderEventBus.Kind.CHECKED_OUT;
+        CRC32 check = new CRC32();
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        ByteBuffer body = ByteBuffer.allocate(4096);
+        for (long pos = HEADER_BYTES; pos < end; ) {
+            prefix.clear();
+            readFully(prefix, pos);
+            int length = prefix.getInt(0);
+            if (length <= 0 || length > MAX_RECORD_BYTES || pos + 8 + length > end) {
+                throw new IOException(path + ": bad record length " + length + " at byte " + pos);
+            }
+            if (body.capacity() < length) body = ByteBuffer.allocate(length);
+            body.clear().limit(length);
+            readFully(body, pos + 8);
+            check.reset();
+            check.update(body.array(), 0, length);
+            if ((int) check.getValue() != prefix.getInt(4)) throw new IOException(path + ": record at byte " + pos + " fails its CRC");
+            body.flip();
+            try {
+                order.timestamp = body.getLong();
+                order.customer = getString(body);
+                order.lines = body.getShort() & 0xFFFF;
+                order.ensureLines(order.lines);
+                for (int i = 0; i < order.lines; i++) {
+                    order.keys[i] = getString(body);
+                    order.variants[i] = Modifiers.PLAIN; // not journaled
+                    order.qtys[i] = body.getInt();
+                    order.lineTotals[i] = body.getLong();
+                }
+                order.total = body.getLong();
+            } catch (BufferUnderflowException e) {
+                throw new IOException(path + ": record at byte " + pos + " is shorter than its contents");
+            }
+            each.accept(order);
+            pos += 8 + length;
+        }
+    }
+
+    private void readFully(ByteBuffer dst, long at) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, at + dst.position()) < 0) throw new IOException(path + " ended mid-record");
+        }
+    }
+
+    private static String getString(ByteBuffer src) {
+        byte[] bytes = new byte[src.getShort() & 0xFFFF];
+        src.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Upper bound for one record: UTF-8 takes at most three bytes per char
+    private static int maxRecordBytes(OrderEventBus.Event order) {
+        long n = 8 + 8 + 2 + 3L * Math.min(order.customer.length(), MAX_STRING_CHARS) + 2 + 8;
+        for (int i = 0; i < order.lines; i++) n += 2 + 3L * Math.min(order.keys[i].length(), MAX_STRING_CHARS) + 4 + 8;
+        return (int) Math.min(n, Integer.MAX_VALUE);
+    }
+
+    // Strings carry a short length; a name longer than that is cut rather than losing the order
+    private void putString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) bytes = s.substring(0, MAX_STRING_CHARS).getBytes(StandardCharsets.UTF_8);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(SYNC_INTERVAL_MILLIS);
+                if (dirty) {
+                    dirty = false;
+                    channel.force(false);
+                }
+            } catch (InterruptedException | IOException e) {
+                if (closed) return;
+            }
+        }
+    }
+
+    // Checks the header, walks every record and cuts the file at the first one that doesn't verify
+    private void recover() throws IOException {
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putLong(System.currentTimeMillis()).flip();
+            channel.truncate(0);
+            channel.write(header, 0);
+            channel.force(true);
+            channel.position(HEADER_BYTES);
+            truncatedBytes = size;
+            recoveredEnd = HEADER_BYTES;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) throw new IOException(path + " is not a Sip Happens order journal");
+        short version = header.getShort();
+        if (version != VERSION) throw new IOException(path + " uses journal format v" + version + ", expected v" + VERSION);
+
+        long pos = HEADER_BYTES;
+        ByteBuffer prefix = ByteBuffer.allocate(8);
+        ByteBuffer body = ByteBuffer.allocate(4096);
+        while (pos + 8 <= size) {
+            prefix.clear();
+            channel.read(prefix, pos);
+            prefix.flip();
+            int length = prefix.getInt();
+            int expected = prefix.getInt();
+            if (length <= 0 || length > MAX_RECORD_BYTES || pos + 8 + length > size) break;
+            if (body.capacity() < length) body = ByteBuffer.allocate(length);
+            body.clear().limit(length);
+            channel.read(body, pos + 8);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != expected) break;
+            pos += 8 + length;
+            records++;
+        }
+        if (pos < size) {
+            truncatedBytes = size - pos;
+            channel.truncate(pos);
+            channel.force(true);
+        }
+        channel.position(pos);
+        recoveredEnd = pos;
+    }
+}
+
+/**
+ * Built-in micro-benchmarks for the café hot paths ({@code java SipHappens --bench}).
+ * Each case is warmed up, then timed for a fixed window on one thread, reporting ns/op and
+ * bytes allocated per op. Results are compared against a checked-in baseline file so a
+ * regression shows up as a failed run; {@code --write-baseline} records a new one.
+ */
+final class CafeBench {
+    static final String DEFAULT_BASELINE = "bench-baseline.txt";
+    private static final long WARMUP_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+    private static final long MEASURE_NANOS = TimeUnit.MILLISECONDS.toNanos(700);
+    private static final double TIME_TOLERANCE = 2.0;   // twice as slow as baseline fails (timings are noisy)
+    private static final double ALLOC_TOLERANCE = 1.25; // 25% more garbage than baseline fails
+    private static final long ALLOC_SLACK_BYTES = 16;
+
+    static volatile long sink; // keeps results alive so the JIT can't drop the work
+
+    interface Case {
+        long run();
+    }
+
+    private final Map<String, Case> cases = new LinkedHashMap<>();
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    CafeBench(Cafe cafe) {
+        Menu menu = cafe.getMenu();
+        MoodAnalyzer analyzer = cafe.getAnalyzer();
+        PrintStream nullSink = new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+        String[] typed = {"Berry Bloom Blizz", "lavender serenity latte", "AUTUMN CHAI CALM", "not a drink"};
+        String[] keys = analyzer.getRecipes().all().stream().map(Recipe::getKey).toArray(String[]::new);
+        int[] i = {0};
+
+        cases.put("menu.isDrinkName+lookupKeyByName", () -> {
+            String t = typed[i[0]++ & 3];
+            return menu.isDrinkName(t) ? menu.lookupKeyByName(t).length() : 0;
+        });
+        cases.put("analyzer.buildDrinkFromKey", () -> analyzer.buildDrinkFromKey(keys[i[0]++ % keys.length]).getName().length());
+        cases.put("analyzer.classify", () -> analyzer.classify("I'm kind of tired and stressed about work", 2).size());
+        cases.put("PesoFormat.format", () -> PesoFormat.format(1_234_50L + (i[0]++ & 1023)).length());
+        cases.put("order.addItem+total", () -> {
+            Order order = new Order(menu);
+            for (int k = 0; k < 5; k++) order.addItem(keys[k], k + 1);
+            return order.getTotal();
+        });
+        cases.put("menu.printMenu", () -> {
+            menu.printMenu(nullSink);
+            return 1;
+        });
+        cases.put("order.checkout", () -> {
+            Order order = new Order(menu);
+            for (int k = 0; k < 5; k++) order.addItem(keys[k], k + 1);
+            order.setCustomerName("Bench");
+            order.checkout(nullSink);
+            return 1;
+        });
+    }
+
+    /** Runs every case, prints the table and returns false when any case regressed. */
+    boolean run(PrintStream out, Path baseline, boolean writeBaseline) throws IOException {
+        Map<String, double[]> expected = writeBaseline || !Files.exists(baseline) ? Map.of() : readBaseline(baseline);
+        Map<String, double[]> measured = new LinkedHashMap<>();
+        boolean ok = true;
+
+        out.printf("%-34s %12s %12s   %s%n", "benchmark", "ns/op", "bytes/op", expected.isEmpty() ? "" : "vs baseline");
+        for (Map.Entry<String, Case> e : cases.entrySet()) {
+            double[] r = measure(e.getValue());
+            measured.put(e.getKey(), r);
+            String verdict = "";
+            double[] base = expected.get(e.getKey());
+            if (base != null) {
+                boolean slow = r[0] > base[0] * TIME_TOLERANCE;
+                boolean fat = r[1] > base[1] * ALLOC_TOLERANCE + ALLOC_SLACK_BYTES;
+                verdict = String.format(Locale.ROOT, "%+.0f%% time, %+.0f B%s", (r[0] / base[0] - 1) * 100, r[1] - base[1],
+                        slow || fat ? "   REGRESSION" : "");
+                ok &= !(slow || fat);
+            }
+            out.printf(Locale.ROOT, "%-34s %12.1f %12.1f   %s%n", e.getKey(), r[0], r[1], verdict);
+        }
+
+        if (writeBaseline) {
+            List<String> lines = new ArrayList<>();
+            lines.add("# CafeBench baseline: benchmark ns/op bytes/op (regenerate with --bench --write-baseline)");
+            measured.forEach((name, r) -> lines.add(String.format(Locale.ROOT, "%s %.1f %.1f", name, r[0], r[1])));
+            Files.write(baseline, lines, StandardCharsets.UTF_8);
+            out.println("Baseline written to " + baseline);
+        }
+        return ok;
+    }
+
+    // [ns per op, bytes allocated per op]
+    private double[] measure(Case c) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        long acc = 0;
+        while (System.nanoTime() < end) {
+            for (int k = 0; k < 100; k++) acc += c.run();
+        }
+
+        long tid = Thread.currentThread().getId();
+        long ops = 0;
+        long bytesBefore = threads.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        end = start + MEASURE_NANOS;
+        long now;
+        do {
+            for (int k = 0; k < 100; k++) acc += c.run();
+            ops += 100;
+        } while ((now = System.nanoTime()) < end);
+        long bytes = threads.getThreadAllocatedBytes(tid) - bytesBefore;
+        sink += acc;
+        return new double[] {(now - start) / (double) ops, bytes / (double) ops};
+    }
+
+    private static Map<String, double[]> readBaseline(Path file) throws IOException {
+        Map<String, double[]> base = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\s+");
+            if (f.length != 3) continue;
+            base.put(f[0], new double[] {Double.parseDouble(f[1]), Double.parseDouble(f[2])});
+        }
+        return base;
+    }
+}
+
+/**
+ * Budget checks for the paths customers feel ({@code java SipHappens --selfcheck}). Each check
+ * runs a representative scenario on one thread, measuring bytes allocated per operation from
+ * the thread's allocation counter and p99 latency per operation, and fails when either is over
+ * its budget in {@code selfcheck-budgets.txt}. Unlike --bench this compares against fixed
+ * limits with headroom, not last run's numbers, so it is safe as a build gate.
+ */
+final class CafeSelfCheck {
+    static final String DEFAULT_BUDGETS = "selfcheck-budgets.txt";
+    private static final int CART_LINES = 50;
+    private static final int BIG_CATALOG = 1000;
+    private static final int SCRIPTED_ORDERS = 10_000;
+
+    private final Cafe cafe;
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final PrintStream nullSink = new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+
+    CafeSelfCheck(Cafe cafe) {
+        this.cafe = cafe;
+    }
+
+    /** Runs every check, prints the table and returns false when any is over budget. */
+    boolean run(PrintStream out, Path budgetsFile) throws IOException {
+        Map<String, double[]> budgets = readBudgets(budgetsFile);
+        Map<String, double[]> results = new LinkedHashMap<>();
+        Menu menu = cafe.getMenu();
+        String[] keys = cafe.getAnalyzer().getRecipes().all().stream().map(Recipe::getKey).toArray(String[]::new);
+
+        // A 50-line cart: every drink, again in a few sizes and add-ons
+        String[] extras = {"", "large", "small oat milk", "large almond milk extra shot less ice"};
+        long[] variants = new long[CART_LINES];
+        for (int n = 0; n < CART_LINES; n++) variants[n] = variantFor(extras[n / keys.length % extras.length]);
+        results.put("cart50.addItem", measure(CART_LINES, 2_000, () -> {
+            Order order = new Order(menu);
+            for (int n = 0; n < CART_LINES; n++) order.addItem(keys[n % keys.length], variants[n], 1 + (n & 1));
+            return order.getTotal();
+        }));
+        Order full = new Order(menu);
+        for (int n = 0; n < CART_LINES; n++) full.addItem(keys[n % keys.length], variants[n], 1);
+        results.put("cart50.printCart", measure(1, 2_000, () -> {
+            full.printCart(nullSink);
+            return 1;
+        }));
+
+        // Name lookups against a 1,000-drink catalog, a tenth of them misses
+        Menu big = new Menu(new MoodAnalyzer(new CatalogStore(bigCatalog())));
+        String[] typed = new String[BIG_CATALOG];
+        for (int n = 0; n < typed.length; n++) {
+            typed[n] = n % 10 == 9 ? "no such drink " + n : (n % 3 == 0 ? bigName(n).toLowerCase(Locale.ROOT) : bigName(n));
+        }
+        int[] next = {0};
+        results.put("menu1000.lookupKeyByName", measure(100, 5_000, () -> {
+            long found = 0;
+            for (int n = 0; n < 100; n++) {
+                String key = big.lookupKeyByName(typed[next[0]++ % typed.length]);
+                if (key != null) found += key.length();
+            }
+            return found;
+        }));
+
+        results.put("script10k.orderLine", scriptedOrders(keys));
+
+        out.printf("%-28s %10s %10s   %10s %10s%n", "check", "bytes/op", "budget", "p99 us", "budget");
+        boolean ok = true;
+        for (Map.Entry<String, double[]> r : results.entrySet()) {
+            double[] m = r.getValue();
+            double[] b = budgets.get(r.getKey());
+            boolean over = b != null && (m[0] > b[0] || m[1] > b[1]);
+            ok &= !over;
+            out.printf(Locale.ROOT, "%-28s %10.1f %10s   %10.2f %10s%s%n", r.getKey(), m[0],
+                    b == null ? "-" : String.format(Locale.ROOT, "%.0f", b[0]), m[1],
+                    b == null ? "-" : String.format(Locale.ROOT, "%.2f", b[1]),
+                    b == null ? "   (no budget)" : over ? "   OVER BUDGET" : "");
+        }
+        out.println(ok ? "All checks within budget." : "Some checks are over budget.");
+        return behaviour(out) && ok;
+    }
+
+    /** A result check: null when it holds, else what went wrong. */
+    private interface Check {
+        String run() throws Exception;
+    }
+
+    // Timings can't show a lost update; these run the concurrent structures hard and check the results
+    private boolean behaviour(PrintStream out) {
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("inventory.conservesStock", this::inventoryConservesStock);
+        checks.put("tab.countsEveryAdd", this::tabCountsEveryAdd);
+        checks.put("eventBus.deliversInOrder", this::eventBusDeliversInOrder);
+        checks.put("journal.recoversTornTail", this::journalRecoversTornTail);
+        checks.put("hashRing.placesStably", this::hashRingPlacesStably);
+        out.printf("%n%-28s %s%n", "behaviour", "result");
+        boolean ok = true;
+        for (Map.Entry<String, Check> c : checks.entrySet()) {
+            String failure;
+            try {
+                failure = c.getValue().run();
+            } catch (Exception e) {
+                failure = e.toString();
+            }
+            ok &= failure == null;
+            out.printf("%-28s %s%n", c.getKey(), failure == null ? "ok" : "FAILED: " + failure);
+        }
+        out.println(ok ? "All behaviour checks hold." : "Some behaviour checks failed.");
+        return ok;
+    }
+
+    // Tills reserving, committing and releasing the same ingredients at once never make or lose a portion
+    private String inventoryConservesStock() throws Exception {
+        CatalogStore catalog = new CatalogStore(Catalog.builtIn());
+        Map<String, Long> stock = new LinkedHashMap<>();
+        for (Recipe r : catalog.current().getRecipes().all()) {
+            for (String ing : r.getIngredients()) stock.put(ing.toLowerCase(), 500L);
+        }
+        Inventory inventory = new Inventory(catalog, stock, msg -> {});
+        String[] keys = catalog.current().getRecipes().all().stream().map(Recipe::getKey).toArray(String[]::new);
+        onThreads(4, t -> {
+            Random rnd = new Random(t);
+            List<Inventory.Reservation> held = new ArrayList<>();
+            for (int n = 0; n < 20_000; n++) {
+                Inventory.Reservation r = inventory.reserve(keys[rnd.nextInt(keys.length)], 1 + rnd.nextInt(3));
+                if (r != null) held.add(r);
+                if (held.size() > 8 || (r == null && !held.isEmpty())) {
+                    Inventory.Reservation back = held.remove(held.size() - 1);
+                    if (rnd.nextInt(8) == 0) inventory.commit(back); else inventory.release(back);
+                }
+            }
+            for (Inventory.Reservation r : held) inventory.release(r);
+        });
+        for (Map.Entry<String, Long> e : stock.entrySet()) {
+            long left = inventory.portionsLeft(e.getKey());
+            long used = inventory.portionsUsed(e.getKey());
+            if (left < 0 || left + used != e.getValue()) {
+                return e.getKey() + ": " + left + " left + " + used + " used, started with " + e.getValue();
+            }
+        }
+        return null;
+    }
+
+    // Friends adding to one tab at once: every cup that was accepted is on it, and a checkout that
+    // closes the tab mid-rush gets exactly the cups whose adds returned true
+    private String tabCountsEveryAdd() throws Exception {
+        String[] keys = cafe.getAnalyzer().getRecipes().all().stream().limit(3).map(Recipe::getKey).toArray(String[]::new);
+        long[] variants = {Modifiers.PLAIN, variantFor("large oat milk")};
+        int lines = keys.length * variants.length;
+        for (int round = 0; round < 2; round++) {
+            boolean closeMidway = round == 1;
+            SharedCart tab = new SharedCart("selfcheck", cafe.getMenu());
+            long[][] accepted = new long[4][lines];
+            AtomicLong adds = new AtomicLong();
+            SharedCart.Snapshot[] closed = new SharedCart.Snapshot[1];
+            onThreads(5, t -> {
+                if (t == 4) {
+                    if (!closeMidway) return;
+                    while (adds.get() < 20_000) Thread.onSpinWait();
+                    closed[0] = tab.close();
+                    return;
+                }
+                Random rnd = new Random(t);
+                for (int n = 0; n < 50_000; n++) {
+                    int line = rnd.nextInt(lines);
+                    int qty = 1 + rnd.nextInt(3);
+                    if (!tab.addItem(keys[line / variants.length], variants[line % variants.length], qty)) break;
+                    accepted[t][line] += qty;
+                    adds.incrementAndGet();
+                }
+            });
+            SharedCart.Snapshot s = closeMidway ? closed[0] : tab.snapshot();
+            if (s == null) return "close() lost the tab";
+            long[] onTab = new long[lines];
+            for (int i = 0; i < s.lines; i++) {
+                int k = Arrays.asList(keys).indexOf(s.keys[i]);
+                int v = s.variants[i] == variants[0] ? 0 : 1;
+                onTab[k * variants.length + v] += s.qtys[i];
+            }
+            for (int line = 0; line < lines; line++) {
+                long sum = 0;
+                for (long[] mine : accepted) sum += mine[line];
+                if (onTab[line] != sum) {
+                    return (closeMidway ? "after close, " : "") + keys[line / variants.length] + " line " + line
+                            + " holds " + onTab[line] + " cups, adds accepted " + sum;
+                }
+            }
+            if (closeMidway && tab.addItem(keys[0], variants[0], 1)) return "a closed tab took another cup";
+        }
+        return null;
+    }
+
+    // Four publishers lapping a small ring: each subscriber sees every event once, in each publisher's order
+    private String eventBusDeliversInOrder() throws Exception {
+        int publishers = 4;
+        int perPublisher = 20_000;
+        OrderEventBus bus = new OrderEventBus(256);
+        String[] names = new String[publishers];
+        for (int p = 0; p < publishers; p++) names[p] = "publisher-" + p;
+        String[] failure = new String[1];
+        long[][] seen = new long[2][publishers];
+        for (int s = 0; s < 2; s++) {
+            long[] last = seen[s];
+            long[] expectedSequence = {0};
+            bus.subscribe("selfcheck-" + s, (e, endOfBatch) -> {
+                int p = e.item.charAt(e.item.length() - 1) - '0';
+                if (failure[0] == null && (e.sequence != expectedSequence[0] || e.nanos != last[p] + 1)) {
+                    failure[0] = "event " + e.sequence + " from " + e.item + " (its #" + e.nanos + ") arrived after #" + last[p]
+                            + ", expected sequence " + expectedSequence[0];
+                }
+                expectedSequence[0] = e.sequence + 1;
+                last[p] = e.nanos;
+            });
+        }
+        bus.start();
+        try {
+            onThreads(publishers, p -> {
+                for (int n = 1; n <= perPublisher; n++) bus.brewed(names[p], n);
+            });
+            bus.flush();
+        } finally {
+            bus.close();
+        }
+        if (failure[0] != null) return failure[0];
+        for (int s = 0; s < 2; s++) {
+            for (int p = 0; p < publishers; p++) {
+                if (seen[s][p] != perPublisher) return "subscriber " + s + " saw " + seen[s][p] + " of " + names[p] + "'s " + perPublisher;
+            }
+        }
+        return null;
+    }
+
+    // A crash mid-append leaves a partial record; reopening keeps every complete one and appends after them
+    private String journalRecoversTornTail() throws Exception {
+        Path file = Files.createTempFile("selfcheck", ".journal");
+        try {
+            String key = cafe.getAnalyzer().getRecipes().all().iterator().next().getKey();
+            OrderEventBus.Event order = new OrderEventBus.Event();
+            order.customer = "Selfcheck";
+            order.lines = 1;
+            order.keys[0] = key;
+            order.qtys[0] = 1;
+            OrderJournal journal = OrderJournal.open(file);
+            for (int n = 1; n <= 10; n++) {
+                order.timestamp = System.currentTimeMillis();
+                order.lineTotals[0] = order.total = n * 100L;
+                journal.append(order);
+            }
+            journal.close();
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ch.truncate(ch.size() - 5); // the last record loses its tail
+            }
+            journal = OrderJournal.open(file);
+            long kept = journal.getRecordCount();
+            long cut = journal.getTruncatedBytes();
+            order.lineTotals[0] = order.total = 1_000;
+            journal.append(order);
+            journal.close();
+            if (kept != 9 || cut <= 0) return "kept " + kept + " records and cut " + cut + " bytes, expected 9 and a cut";
+            SalesReport report = SalesReport.scan(file, cafe.getAnalyzer().getRecipes(), 0, Long.MAX_VALUE);
+            long expected = 45 * 100L + 1_000; // orders 1..9, then the one appended after recovery
+            if (report.getOrders() != 10 || report.getRevenue() != expected) {
+                return "read back " + report.getOrders() + " orders worth " + report.getRevenue() + ", expected 10 worth " + expected;
+            }
+            return null;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    // Placement depends only on who is in the ring; a branch joining takes names from the others
+    // and gives nothing to anyone else, takes about its share, and leaving gives them all back
+    private String hashRingPlacesStably() {
+        int customers = 20_000;
+        HashRing ring = new HashRing();
+        ring.add("west");
+        ring.add("east");
+        HashRing joinedOtherWay = new HashRing();
+        joinedOtherWay.add("east");
+        joinedOtherWay.add("west");
+        String[] before = new String[customers];
+        for (int c = 0; c < customers; c++) {
+            String name = "customer-" + c;
+            before[c] = ring.ownerOf(name);
+            if (!before[c].equals(joinedOtherWay.ownerOf(name))) {
+                return name + " lands on a different branch when they join in another order";
+            }
+            if (!before[c].equals(ring.ownerOf("  CUSTOMER-" + c + " "))) return name + " moves with case or spaces";
+        }
+        ring.add("north");
+        int moved = 0;
+        for (int c = 0; c < customers; c++) {
+            String owner = ring.ownerOf("customer-" + c);
+            if (owner.equals(before[c])) continue;
+            if (!owner.equals("north")) {
+                return "customer-" + c + " moved from " + before[c] + " to " + owner + ", not to the new branch";
+            }
+            moved++;
+        }
+        double share = ring.shares().get("north");
+        double movedShare = moved / (double) customers;
+        if (Math.abs(movedShare - share) > 0.03) {
+            return String.format("north took %.3f of the names but owns %.3f of the ring", movedShare, share);
+        }
+        double total = 0;
+        for (Map.Entry<String, Double> e : ring.shares().entrySet()) {
+            total += e.getValue();
+            if (e.getValue() < 0.5 / 3 || e.getValue() > 1.5 / 3) {
+                return String.format("%s owns %.3f of the ring with three branches", e.getKey(), e.getValue());
+            }
+        }
+        if (Math.abs(total - 1) > 1e-9) return "the shares add up to " + total;
+        ring.remove("north");
+        for (int c = 0; c < customers; c++) {
+            if (!before[c].equals(ring.ownerOf("customer-" + c))) {
+                return "customer-" + c + " didn't go back to " + before[c] + " after north left";
+            }
+        }
+        return null;
+    }
+
+    // Runs body(0) .. body(n - 1) on n threads at once and rethrows the first failure
+    private static void onThreads(int n, IntConsumer body) throws Exception {
+        Throwable[] failed = new Throwable[1];
+        Thread[] workers = new Thread[n];
+        for (int t = 0; t < n; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    body.accept(id);
+                } catch (Throwable e) {
+                    synchronized (failed) {
+                        if (failed[0] == null) failed[0] = e;
+                    }
+                }
+            }, "selfcheck-" + t);
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        if (failed[0] != null) throw new Exception("worker failed: " + failed[0], failed[0]);
+    }
+
+    // [bytes per op, p99 µs per op]; each sample is one call of c, covering opsPerSample ops
+    private double[] measure(int opsPerSample, int samples, CafeBench.Case c) {
+        long acc = 0;
+        for (int s = 0; s < samples; s++) acc += c.run(); // warm-up
+        CafeMetrics.LatencyHistogram latency = new CafeMetrics.LatencyHistogram();
+        long tid = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(tid);
+        for (int s = 0; s < samples; s++) {
+            long start = System.nanoTime();
+            acc += c.run();
+            latency.record(System.nanoTime() - start);
+        }
+        long bytes = threads.getThreadAllocatedBytes(tid) - bytesBefore;
+        CafeBench.sink += acc;
+        return new double[] {bytes / (double) samples / opsPerSample, latency.quantile(0.99) / 1000.0 / opsPerSample};
+    }
+
+    // 10k one-line orders through a real headless session; the p99 is of the slowest command kind
+    private double[] scriptedOrders(String[] keys) {
+        String[] moods = cafe.getAnalyzer().getSupportedMoods().toArray(new String[0]);
+        StringBuilder script = new StringBuilder();
+        for (int n = 0; n < SCRIPTED_ORDERS; n++) {
+            script.append("2x ").append(cafe.getMenu().getNameForKey(keys[n % keys.length]))
+                    .append(", 1x large oat milk ").append(cafe.getMenu().getNameForKey(keys[(n * 7 + 3) % keys.length]))
+                    .append(", 1x mood ").append(moods[n % moods.length])
+                    .append("; checkout as Regular").append(n % 100).append('\n');
+        }
+        String lines = script.toString();
+        Drink.setBrewMillis(0);
+        runScript(lines.substring(0, lines.length() / 5)); // warm-up
+        CafeMetrics metrics = CafeMetrics.shared();
+        CafeMetrics.LatencyHistogram orderBefore = metrics.histogram(CafeMetrics.Timer.ORDER).copy();
+        CafeMetrics.LatencyHistogram checkoutBefore = metrics.histogram(CafeMetrics.Timer.CHECKOUT).copy();
+        long tid = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(tid);
+        runScript(lines);
+        long bytes = threads.getThreadAllocatedBytes(tid) - bytesBefore;
+        long p99 = Math.max(metrics.histogram(CafeMetrics.Timer.ORDER).minus(orderBefore).quantile(0.99),
+                metrics.histogram(CafeMetrics.Timer.CHECKOUT).minus(checkoutBefore).quantile(0.99));
+        return new double[] {bytes / (double) SCRIPTED_ORDERS, p99 / 1000.0};
+    }
+
+    private void runScript(String lines) {
+        new CafeSession(cafe, new Scanner(lines), nullSink, nullSink).run();
+    }
+
+    private static long variantFor(String words) {
+        CommandTokenizer tokens = new CommandTokenizer().reset(words + " x");
+        tokens.nextCommand();
+        tokens.nextItem();
+        return Modifiers.take(tokens);
+    }
+
+    // "Velvet Caramel Latte", "Misty Hazelnut Frappe", ... 1,000 distinct names
+    private static final String[] FIRST = {"Velvet", "Misty", "Golden", "Midnight", "Sunny", "Quiet", "Wild", "Rosy", "Smoky", "Frosty"};
+    private static final String[] SECOND = {"Caramel", "Hazelnut", "Matcha", "Cocoa", "Berry", "Honey", "Vanilla", "Ginger", "Mint", "Coconut"};
+    private static final String[] THIRD = {"Latte", "Frappe", "Brew", "Cooler", "Tonic", "Smoothie", "Mocha", "Chai", "Fizz", "Cloud"};
+    private static final String[] TYPES = {"Coffee", "Tea", "Smoothie", "Elixir", "Cocoa"};
+
+    private static String bigName(int n) {
+        return FIRST[n / 100 % 10] + " " + SECOND[n / 10 % 10] + " " + THIRD[n % 10];
+    }
+
+    private static Catalog bigCatalog() {
+        Catalog.Builder b = new Catalog.Builder();
+        for (int n = 0; n < BIG_CATALOG; n++) {
+            b.drink(String.format(Locale.ROOT, "drink_%04d", n), bigName(n), 12_000 + n * 5L, "☕", TYPES[n % TYPES.length],
+                    "", "Made for the self-check.", List.of("milk", "espresso"));
+        }
+        return b.build(1);
+    }
+
+    // One line per check: name, max bytes/op, max p99 µs/op
+    private static Map<String, double[]> readBudgets(Path file) throws IOException {
+        Map<String, double[]> budgets = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\s+");
+            if (f.length != 3) continue;
+            budgets.put(f[0], new double[] {Double.parseDouble(f[1]), Double.parseDouble(f[2])});
+        }
+        return budgets;
+    }
+}
+
+/**
+ * In-process load generator for sizing hardware: N customer threads build carts through the
+ * real Menu, MoodAnalyzer and Order classes and check out, optionally paced to a target
+ * rate. Latency is measured from when each order was due to start, so a stalled café shows
+ * up in the percentiles instead of quietly lowering the rate.
+ */
+final class CafeLoad {
+    private final Cafe cafe;
+    private int customers = 8;
+    private double rate;        // orders/sec across all customers; 0 runs flat out
+    private int seconds = 10;
+    private int moodPercent = 50; // share of cart lines picked by mood rather than by drink name
+    private final Map<String, Integer> moodWeights = new LinkedHashMap<>();
+
+    private final CafeMetrics.LatencyHistogram latency = new CafeMetrics.LatencyHistogram();
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder drinks = new LongAdder();
+    private final LongAdder soldOut = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    CafeLoad(Cafe cafe) {
+        this.cafe = cafe;
+    }
+
+    // "customers=16,rate=200,seconds=30,by-mood=70,anxious=3,tired=1"; any mood name sets its weight
+    public CafeLoad configure(String spec) {
+        List<String> moods = cafe.getAnalyzer().getSupportedMoods();
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2) continue;
+            String name = kv[0].trim().toLowerCase();
+            try {
+                int value = Integer.parseInt(kv[1].trim());
+                if (name.equals("customers")) customers = Math.max(1, value);
+                else if (name.equals("rate")) rate = Math.max(0, value);
+                else if (name.equals("seconds")) seconds = Math.max(1, value);
+                else if (name.equals("by-mood")) moodPercent = Math.max(0, Math.min(100, value));
+                else if (moods.contains(name)) moodWeights.put(name, Math.max(0, value));
+                else System.err.println("Load setting '" + name + "' is not a setting or a mood; ignored");
+            } catch (NumberFormatException ignored) {
+                // keep the default for that setting
+            }
+        }
+        return this;
+    }
+
+    public void run(PrintStream out) throws InterruptedException {
+        MoodAnalyzer analyzer = cafe.getAnalyzer();
+        List<String> moods = new ArrayList<>(moodWeights.isEmpty() ? analyzer.getSupportedMoods() : moodWeights.keySet());
+        int[] cumulative = new int[moods.size()];
+        int weight = 0;
+        for (int m = 0; m < moods.size(); m++) {
+            weight += moodWeights.isEmpty() ? 1 : moodWeights.get(moods.get(m));
+            cumulative[m] = weight;
+        }
+        int totalWeight = weight;
+        String[] names = analyzer.getRecipes().all().stream().map(Recipe::getName).toArray(String[]::new);
+
+        out.printf("Running %d customers for %d s at %s...%n", customers, seconds,
+                rate > 0 ? String.format(Locale.ROOT, "%.0f orders/s", rate) : "full speed");
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gc.getCollectionCount();
+            gcMillis -= gc.getCollectionTime();
+        }
+
+        long interval = rate > 0 ? (long) (1e9 * customers / rate) : 0;
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] team = new Thread[customers];
+        for (int c = 0; c < customers; c++) {
+            int id = c;
+            long firstDue = start + (interval * c) / customers; // stagger so arrivals are spread out
+            team[c] = new Thread(() -> customer(id, firstDue, interval, deadline, moods, cumulative, totalWeight, names),
+                    "load-" + (c + 1));
+            team[c].setDaemon(true);
+            team[c].start();
+        }
+        for (Thread t : team) t.join();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gc.getCollectionCount();
+            gcMillis += gc.getCollectionTime();
+        }
+
+        out.println("\n────────── ✧ LOAD TEST ✧ ──────────");
+        out.printf(Locale.ROOT, "orders     %d in %.1f s = %.1f/s   drinks %d   sold out %d%n",
+                orders.sum(), elapsed, orders.sum() / elapsed, drinks.sum(), soldOut.sum());
+        out.printf("latency    p50 %s   p90 %s   p99 %s   p99.9 %s   max %s%n",
+                micros(latency.quantile(0.50)), micros(latency.quantile(0.90)), micros(latency.quantile(0.99)),
+                micros(latency.quantile(0.999)), micros(latency.quantile(1.0)));
+        out.printf(Locale.ROOT, "gc         %d collections, %d ms (%.1f%% of the run)%n",
+                gcCount, gcMillis, gcMillis / (elapsed * 10));
+        out.printf(Locale.ROOT, "allocation %.1f MB/s, %.0f bytes per order%n",
+                allocatedBytes.sum() / elapsed / 1e6, orders.sum() == 0 ? 0.0 : allocatedBytes.sum() / (double) orders.sum());
+        out.println("───────────────────────────────────");
+    }
+
+    private void customer(int id, long due, long interval, long deadline,
+                          List<String> moods, int[] cumulative, int totalWeight, String[] names) {
+        MoodAnalyzer analyzer = cafe.getAnalyzer();
+        Menu menu = cafe.getMenu();
+        PrintStream sink = new PrintStream(OutputStream.nullOutputStream(), false, StandardCharsets.UTF_8);
+        SplittableRandom random = new SplittableRandom(id * 0x9E3779B97F4A7C15L);
+        String customerName = "Load-" + (id + 1);
+        long tid = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(tid);
+
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (due >= deadline) break;
+                if (now < due) LockSupport.parkNanos(due - now);
+            } else {
+                if (now >= deadline) break;
+                due = now;
+            }
+
+            Order order = cafe.newOrder();
+            int lines = 1 + random.nextInt(3);
+            for (int l = 0; l < lines; l++) {
+                String key;
+                if (random.nextInt(100) < moodPercent) {
+                    int pick = random.nextInt(totalWeight);
+                    int m = 0;
+                    while (cumulative[m] <= pick) m++;
+                    String mood = moods.get(m);
+                    key = analyzer.getKeyForMood(mood);
+                    try {
+                        analyzer.getDrinkForMood(mood);
+                    } catch (InvalidMoodException e) {
+                        continue; // the catalog was reloaded without this mood
+                    }
+                } else {
+                    key = menu.lookupKeyByName(names[random.nextInt(names.length)]);
+                }
+                if (key == null) continue;
+                int qty = 1 + random.nextInt(3);
+                if (order.addItem(key, qty)) {
+                    drinks.add(qty);
+                } else {
+                    soldOut.increment();
+                }
+            }
+            if (!order.isEmpty()) {
+                order.setCustomerName(customerName);
+                order.checkout(sink);
+                orders.increment();
+            }
+            latency.record(System.nanoTime() - due);
+            due += interval;
+        }
+        allocatedBytes.add(threads.getThreadAllocatedBytes(tid) - bytesBefore);
+    }
+
+    private static String micros(long nanos) {
+        return nanos >= 10_000_000 ? (nanos / 1_000_000) + "ms" : (nanos / 1_000) + "µs";
+    }
+}
+
+/**
+ * Open-addressed table from byte strings to dense ids, probed straight from a ByteBuffer,
+ * so journal keys and names can be counted without decoding them into Strings.
+ */
+final class ByteKeyIndex {
+    private byte[][] keys;
+    private int[] slots; // id + 1, 0 when empty
+    private int size;
+
+    ByteKeyIndex(int expected) {
+        keys = new byte[Math.max(4, expected)][];
+        slots = new int[Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1];
+    }
+
+    public int size() { return size; }
+    public byte[] keyAt(int id) { return keys[id]; }
+
+    public int find(ByteBuffer buf, int at, int len) {
+        int mask = slots.length - 1;
+        for (int slot = hash(buf, at, len) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (matches(keys[id], buf, at, len)) return id;
+        }
+        return -1;
+    }
+
+    public int findOrAdd(ByteBuffer buf, int at, int len) {
+        int id = find(buf, at, len);
+        if (id >= 0) return id;
+        byte[] key = new byte[len];
+        for (int i = 0; i < len; i++) key[i] = buf.get(at + i);
+        return add(key);
+    }
+
+    public int findOrAdd(byte[] key) {
+        return findOrAdd(ByteBuffer.wrap(key), 0, key.length);
+    }
+
+    private int add(byte[] key) {
+        if (size == keys.length) keys = Arrays.copyOf(keys, size * 2);
+        if ((size + 1) * 2 > slots.length) rehash(slots.length * 2);
+        keys[size] = key;
+        insert(size);
+        return size++;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        for (int id = 0; id < size; id++) insert(id);
+    }
+
+    private void insert(int id) {
+        int mask = slots.length - 1;
+        byte[] key = keys[id];
+        int slot = hash(ByteBuffer.wrap(key), 0, key.length) & mask;
+        while (slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = id + 1;
+    }
+
+    private static boolean matches(byte[] key, ByteBuffer buf, int at, int len) {
+        if (key.length != len) return false;
+        for (int i = 0; i < len; i++) {
+            if (key[i] != buf.get(at + i)) return false;
+        }
+        return true;
+    }
+
+    private static int hash(ByteBuffer buf, int at, int len) {
+        int h = 0x811C9DC5; // FNV-1a
+        for (int i = 0; i < len; i++) {
+            h ^= buf.get(at + i);
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
+
+/**
+ * What each named customer has had before: visit counts, drinks and moods, kept in primitive
+ * arrays indexed by ids from ByteKeyIndex tables over the folded name, drink key and mood.
+ * It is seeded from the order journal at startup (visits and drinks; moods are only known for
+ * orders taken since). A regular's usual comes out of a small LRU cache, so it isn't recomputed
+ * on every visit; recording an order drops just that customer's entry.
+ */
+final class CustomerHistory {
+    static final int CACHE_SIZE = 256;
+
+    /** A regular's favourite drink and the mood they most often come in with (null if none yet). */
+    static final class Usual {
+        final String key;
+        final String mood;
+        final int visits;
+
+        Usual(String key, String mood, int visits) {
+            this.key = key;
+            this.mood = mood;
+            this.visits = visits;
+        }
+    }
+
+    private final CatalogStore catalog;
+    private final ByteKeyIndex customers = new ByteKeyIndex(64);
+    private final ByteKeyIndex drinkKeys = new ByteKeyIndex(32);
+    private final ByteKeyIndex moods = new ByteKeyIndex(32);
+    private int[] visits = new int[64];
+    private int[][] drinkCounts = new int[64][]; // [customer][drink id]
+    private int[][] moodCounts = new int[64][];  // [customer][mood id]
+    private final Map<Integer, Usual> cache = new LinkedHashMap<>(CACHE_SIZE * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Usual> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    CustomerHistory(CatalogStore catalog) {
+        this.catalog = catalog;
+    }
+
+    /** Adds one checked-out order; walk-ins ("Guest") aren't tracked. */
+    public synchronized void record(String name, Map<String, Integer> items, List<String> orderMoods) {
+        if (name == null || name.isBlank() || name.equalsIgnoreCase("Guest")) return;
+        int id = customerId(name);
+        visits[id]++;
+        for (Map.Entry<String, Integer> e : items.entrySet()) {
+            drinkCounts[id] = bump(drinkCounts[id], drinkKeys.findOrAdd(utf8(e.getKey())), e.getValue());
+        }
+        for (String mood : orderMoods) {
+            moodCounts[id] = bump(moodCounts[id], moods.findOrAdd(utf8(mood)), 1);
+        }
+        cache.remove(id);
+    }
+
+    public synchronized int visits(String name) {
+        if (name == null) return 0;
+        byte[] folded = utf8(fold(name));
+        int id = customers.find(ByteBuffer.wrap(folded), 0, folded.length);
+        return id < 0 ? 0 : visits[id];
+    }
+
+    /** The customer's usual, or null for someone we haven't served before. */
+    public synchronized Usual usualFor(String name) {
+        if (name == null) return null;
+        byte[] folded = utf8(fold(name));
+        int id = customers.find(ByteBuffer.wrap(folded), 0, folded.length);
+        if (id < 0 || visits[id] == 0) return null;
+        Usual usual = cache.get(id);
+        if (usual != null) {
+            CafeMetrics.shared().recommendationHit();
+            return usual;
+        }
+        CafeMetrics.shared().recommendationMiss();
+        RecipeCatalog recipes = catalog.current().getRecipes();
+        String favourite = null;
+        int best = 0;
+        int[] counts = drinkCounts[id];
+        for (int d = 0; counts != null && d < Math.min(counts.length, drinkKeys.size()); d++) {
+            String key = new String(drinkKeys.keyAt(d), StandardCharsets.UTF_8);
+            if (counts[d] > best && recipes.contains(key)) { // skip drinks taken off the menu
+                best = counts[d];
+                favourite = key;
+            }
+        }
+        if (favourite == null) return null;
+        String mood = null;
+        best = 0;
+        counts = moodCounts[id];
+        for (int m = 0; counts != null && m < Math.min(counts.length, moods.size()); m++) {
+            if (counts[m] > best) {
+                best = counts[m];
+                mood = new String(moods.keyAt(m), StandardCharsets.UTF_8);
+            }
+        }
+        usual = new Usual(favourite, mood, visits[id]);
+        cache.put(id, usual);
+        return usual;
+    }
+
+    /**
+     * Replays names and drinks from the order journal so regulars are remembered across restarts.
+     * Only orders from before this run are read; the ones taken since are recorded as they happen.
+     */
+    public void warmFrom(OrderJournal journal) throws IOException {
+        Map<String, Integer> items = new LinkedHashMap<>();
+        journal.replay(order -> {
+            items.clear();
+            for (int i = 0; i < order.lines; i++) items.merge(order.keys[i], order.qtys[i], Integer::sum);
+            record(order.customer, items, List.of());
+        });
+    }
+
+    private int customerId(String name) {
+        int id = customers.findOrAdd(utf8(fold(name)));
+        if (id == visits.length) {
+            visits = Arrays.copyOf(visits, id * 2);
+            drinkCounts = Arrays.copyOf(drinkCounts, id * 2);
+            moodCounts = Arrays.copyOf(moodCounts, id * 2);
+        }
+        return id;
+    }
+
+    private static int[] bump(int[] counts, int id, int by) {
+        if (counts == null) counts = new int[Math.max(8, id + 1)];
+        if (id >= counts.length) counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+        counts[id] += by;
+        return counts;
+    }
+
+    private static String fold(String name) { return name.trim().toLowerCase(Locale.ROOT); }
+
+    private static byte[] utf8(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+}
+
+/**
+ * Sales totals from the order journal, built in one streaming pass. Everything is counted in
+ * primitive arrays: per drink ordinal, per hour of day and per customer id. Big journals are
+ * split into segments that are memory-mapped and scanned in parallel, then merged; per-type and
+ * per-mood figures are rolled up from the per-drink counts when the report is printed.
+ */
+final class SalesReport {
+    private static final long MIN_SEGMENT_BYTES = 4L << 20;
+    private static final long MAX_SEGMENT_BYTES = 1L << 30;
+    private static final int TOP_CUSTOMERS = 5;
+
+    private final RecipeCatalog recipes;
+    private final ByteKeyIndex drinkKeys;
+    private final long fromMillis;
+    private final long toMillis;
+    private final TimeZone zone = TimeZone.getDefault();
+
+    private final long[] units;
+    private final long[] revenue;
+    private long otherUnits;   // keys no longer in the catalog
+    private long otherRevenue;
+    private final long[] ordersByHour = new long[24];
+    private final long[] revenueByHour = new long[24];
+    private long orders;
+    private long totalRevenue;
+    private final ByteKeyIndex customers = new ByteKeyIndex(64);
+    private long[] customerSpend = new long[64];
+    private int[] customerVisits = new int[64];
+
+    private SalesReport(RecipeCatalog recipes, ByteKeyIndex drinkKeys, long fromMillis, long toMillis) {
+        this.recipes = recipes;
+        this.drinkKeys = drinkKeys;
+        this.fromMillis = fromMillis;
+        this.toMillis = toMillis;
+        this.units = new long[recipes.size()];
+        this.revenue = new long[recipes.size()];
+    }
+
+    public long getOrders() { return orders; }
+    public long getRevenue() { return totalRevenue; }
+
+    /** A report window typed by a person: today (or empty), all, or the last few hours ("3h"). */
+    static final class Window {
+        final long from;
+        final String title;
+
+        private Window(long from, String title) {
+            this.from = from;
+            this.title = title;
+        }
+
+        // null when the window can't be read
+        static Window parse(String window) {
+            window = window.trim();
+            if (window.isEmpty() || window.equalsIgnoreCase("today")) {
+                return new Window(LocalDate.now().atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli(), "TODAY");
+            }
+            if (window.equalsIgnoreCase("all")) return new Window(Long.MIN_VALUE, "ALL TIME");
+            if (window.toLowerCase().endsWith("h")) {
+                try {
+                    int hours = Integer.parseInt(window.substring(0, window.length() - 1).trim());
+                    return new Window(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(hours), "LAST " + hours + "H");
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+
+    /** An empty report to add other branches' figures into (see {@link #readFrom}). */
+    public static SalesReport empty(RecipeCatalog recipes) {
+        ByteKeyIndex drinkKeys = new ByteKeyIndex(recipes.size());
+        for (int i = 0; i < recipes.size(); i++) {
+            drinkKeys.findOrAdd(recipes.at(i).getKey().getBytes(StandardCharsets.UTF_8));
+        }
+        return new SalesReport(recipes, drinkKeys, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * The totals as plain text lines, one figure per line and drink keys rather than ordinals,
+     * so a branch running a different catalog version can still be merged. Ends with "end".
+     */
+    public void writeTo(PrintStream out) {
+        out.println("orders " + orders + " " + totalRevenue);
+        for (int i = 0; i < units.length; i++) {
+            if (units[i] > 0) out.println("drink " + units[i] + " " + revenue[i] + " " + recipes.at(i).getKey());
+        }
+        if (otherUnits > 0) out.println("other " + otherUnits + " " + otherRevenue);
+        for (int h = 0; h < 24; h++) {
+            if (ordersByHour[h] > 0) out.println("hour " + h + " " + ordersByHour[h] + " " + revenueByHour[h]);
+        }
+        for (int c = 0; c < customers.size(); c++) {
+            out.println("customer " + customerVisits[c] + " " + customerSpend[c] + " "
+                    + new String(customers.keyAt(c), StandardCharsets.UTF_8));
+        }
+        out.println("end");
+    }
+
+    /** Adds figures written by {@link #writeTo} to this report. */
+    public void readFrom(BufferedReader in) throws IOException {
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            String[] f = line.split(" ", 4);
+            try {
+                switch (f[0]) {
+                    case "end" -> { return; }
+                    case "orders" -> {
+                        orders += Long.parseLong(f[1]);
+                        totalRevenue += Long.parseLong(f[2]);
+                    }
+                    case "drink" -> {
+                        int ordinal = recipes.ordinalOf(f[3]);
+                        if (ordinal >= 0) {
+                            units[ordinal] += Long.parseLong(f[1]);
+                            revenue[ordinal] += Long.parseLong(f[2]);
+                        } else {
+                            otherUnits += Long.parseLong(f[1]);
+                            otherRevenue += Long.parseLong(f[2]);
+                        }
+                    }
+                    case "other" -> {
+                        otherUnits += Long.parseLong(f[1]);
+                        otherRevenue += Long.parseLong(f[2]);
+                    }
+                    case "hour" -> {
+                        int h = Integer.parseInt(f[1]);
+                        ordersByHour[h] += Long.parseLong(f[2]);
+                        revenueByHour[h] += Long.parseLong(f[3]);
+                    }
+                    case "customer" -> {
+                        int id = customers.findOrAdd(f[3].getBytes(StandardCharsets.UTF_8));
+                        ensureCustomerCapacity(id);
+                        customerVisits[id] += Integer.parseInt(f[1]);
+                        customerSpend[id] += Long.parseLong(f[2]);
+                    }
+                    default -> throw new IOException("unexpected line '" + line + "'");
+                }
+            } catch (RuntimeException e) {
+                throw new IOException("bad line '" + line + "'", e);
+            }
+        }
+        throw new IOException("report ended early");
+    }
+
+    /** Scans the journal for orders checked out in [fromMillis, toMillis). */
+    public static SalesReport scan(Path journal, RecipeCatalog recipes, long fromMillis, long toMillis) throws IOException {
+        ByteKeyIndex drinkKeys = new ByteKeyIndex(recipes.size());
+        for (int i = 0; i < recipes.size(); i++) {
+            drinkKeys.findOrAdd(recipes.at(i).getKey().getBytes(StandardCharsets.UTF_8));
+        }
+        SalesReport total = new SalesReport(recipes, drinkKeys, fromMillis, toMillis);
+
+        try (FileChannel ch = FileChannel.open(journal, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size <= OrderJournal.HEADER_BYTES) return total;
+            long body = size - OrderJournal.HEADER_BYTES;
+            int threads = Runtime.getRuntime().availableProcessors();
+            int count = (int) Math.max(Math.min(threads, body / MIN_SEGMENT_BYTES), (body + MAX_SEGMENT_BYTES - 1) / MAX_SEGMENT_BYTES);
+            count = Math.max(1, count);
+
+            List<CompletableFuture<Segment>> parts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                long start = OrderJournal.HEADER_BYTES + body * i / count;
+                long end = OrderJournal.HEADER_BYTES + body * (i + 1) / count;
+                SalesReport part = new SalesReport(recipes, drinkKeys, fromMillis, toMillis);
+                parts.add(count == 1
+                        ? CompletableFuture.completedFuture(scanSegment(ch, size, start, end, start, part))
+                        : CompletableFuture.supplyAsync(() -> scanSegment(ch, size, start, end, -1, part)));
+            }
+
+            // Stitch the segments together. A segment that synced onto a different record
+            // boundary than where its predecessor actually stopped is rescanned from there.
+            long expected = OrderJournal.HEADER_BYTES;
+            for (CompletableFuture<Segment> f : parts) {
+                Segment seg = f.join();
+                if (seg.error != null) throw seg.error;
+                if (expected >= seg.end) continue;
+                if (seg.first != expected) {
+                    seg = scanSegment(ch, size, seg.start, seg.end, expected, new SalesReport(recipes, drinkKeys, fromMillis, toMillis));
+                    if (seg.error != null) throw seg.error;
+                }
+                total.merge(seg.report);
+                expected = seg.next;
+            }
+        }
+        return total;
+    }
+
+    private static final class Segment {
+        long start, end;   // byte range this segment owns
+        long first;        // where scanning actually began
+        long next;         // first record boundary at or past end (or where the chain stopped)
+        SalesReport report;
+        IOException error;
+    }
+
+    /** Counts every record starting in [start, end). With {@code from < 0} the first boundary is found by CRC. */
+    private static Segment scanSegment(FileChannel ch, long size, long start, long end, long from, SalesReport into) {
+        Segment seg = new Segment();
+        seg.start = start;
+        seg.end = end;
+        seg.report = into;
+        try {
+            long mapEnd = Math.min(size, end + 8 + OrderJournal.MAX_RECORD_BYTES);
+            long base = from >= 0 ? Math.min(from, start) : start;
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, base, mapEnd - base);
+            int limit = buf.limit();
+            int p = (int) ((from >= 0 ? from : start) - base);
+            if (from < 0) {
+                CRC32 crc = new CRC32();
+                while (p < end - base && !validRecordAt(buf, p, crc)) p++;
+            }
+            seg.first = base + p;
+            while (p < end - base && p + 8 <= limit) {
+                int length = buf.getInt(p);
+                if (length <= 0 || length > OrderJournal.MAX_RECORD_BYTES || p + 8 + length > limit) break;
+                into.accept(buf, p + 8);
+                p += 8 + length;
+            }
+            seg.next = base + p;
+        } catch (IOException e) {
+            seg.error = e;
+        }
+        return seg;
+    }
+
+    private static boolean validRecordAt(ByteBuffer buf, int p, CRC32 crc) {
+        if (p + 8 > buf.limit()) return false;
+        int length = buf.getInt(p);
+        if (length <= 0 || length > OrderJournal.MAX_RECORD_BYTES || p + 8 + length > buf.limit()) return false;
+        ByteBuffer payload = buf.duplicate();
+        payload.limit(p + 8 + length).position(p + 8);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue() == buf.getInt(p + 4);
+    }
+
+    // Decodes one record payload in place (see OrderJournal for the layout)
+    private void accept(ByteBuffer buf, int p) {
+        long timestamp = buf.getLong(p);
+        if (timestamp < fromMillis || timestamp >= toMillis) return;
+        p += 8;
+        int nameLen = buf.getShort(p) & 0xFFFF;
+        int nameAt = p + 2;
+        p = nameAt + nameLen;
+        int itemCount = buf.getShort(p) & 0xFFFF;
+        p += 2;
+        for (int i = 0; i < itemCount; i++) {
+            int keyLen = buf.getShort(p) & 0xFFFF;
+            int ordinal = drinkKeys.find(buf, p + 2, keyLen);
+            p += 2 + keyLen;
+            int qty = buf.getInt(p);
+            long line = buf.getLong(p + 4);
+            p += 12;
+            if (ordinal >= 0 && ordinal < units.length) {
+                units[ordinal] += qty;
+                revenue[ordinal] += line;
+            } else {
+                otherUnits += qty;
+                otherRevenue += line;
+            }
+        }
+        long orderTotal = buf.getLong(p);
+
+        orders++;
+        totalRevenue += orderTotal;
+        int hour = (int) Math.floorMod(Math.floorDiv(timestamp + zone.getOffset(timestamp), 3_600_000L), 24L);
+        ordersByHour[hour]++;
+        revenueByHour[hour] += orderTotal;
+
+        int id = customers.findOrAdd(buf, nameAt, nameLen);
+        ensureCustomerCapacity(id);
+        customerSpend[id] += orderTotal;
+        customerVisits[id]++;
+    }
+
+    private void ensureCustomerCapacity(int id) {
+        if (id < customerSpend.length) return;
+        int capacity = Math.max(id + 1, customerSpend.length * 2);
+        customerSpend = Arrays.copyOf(customerSpend, capacity);
+        customerVisits = Arrays.copyOf(customerVisits, capacity);
+    }
+
+    public void merge(SalesReport other) {
+        for (int i = 0; i < units.length; i++) {
+            units[i] += other.units[i];
+            revenue[i] += other.revenue[i];
+        }
+        otherUnits += other.otherUnits;
+        otherRevenue += other.otherRevenue;
+        for (int h = 0; h < 24; h++) {
+            ordersByHour[h] += other.ordersByHour[h];
+            revenueByHour[h] += other.revenueByHour[h];
+        }
+        orders += other.orders;
+        totalRevenue += other.totalRevenue;
+        for (int c = 0; c < other.customers.size(); c++) {
+            int id = customers.findOrAdd(other.customers.keyAt(c));
+            ensureCustomerCapacity(id);
+            customerSpend[id] += other.customerSpend[c];
+            customerVisits[id] += other.customerVisits[c];
+        }
+    }
+
+    public void print(PrintStream out, String title, Menu menu, MoodAnalyzer analyzer) {
+        out.println();
+        out.println("────────── ✧ SALES REPORT: " + title + " ✧ ──────────");
+        if (orders == 0) {
+            out.println("No orders yet in this window ✨");
+            out.println("──────────────────────────────────────────");
+            return;
+        }
+        out.println("Orders: " + orders + "    Revenue: " + PesoFormat.format(totalRevenue));
+
+        Integer[] byRevenue = new Integer[units.length];
+        for (int i = 0; i < byRevenue.length; i++) byRevenue[i] = i;
+        Arrays.sort(byRevenue, (a, b) -> Long.compare(revenue[b], revenue[a]));
+        out.println("\nBy drink:");
+        for (int i : byRevenue) {
+            if (units[i] == 0) continue;
+            out.printf("  %-28s x%-5d %s%n", menu.getNameForKey(recipes.at(i).getKey()), units[i], PesoFormat.format(revenue[i]));
+        }
+        if (otherUnits > 0) out.printf("  %-28s x%-5d %s%n", "(retired drinks)", otherUnits, PesoFormat.format(otherRevenue));
+
+        Map<String, Long> unitsByType = new TreeMap<>();
+        Map<String, Long> revenueByMood = new TreeMap<>();
+        for (int i = 0; i < units.length; i++) {
+            if (units[i] == 0) continue;
+            String key = recipes.at(i).getKey();
+            unitsByType.merge(recipes.prototype(key).getClass().getSimpleName(), units[i], Long::sum);
+            String mood = analyzer.getMoodForKey(key);
+            revenueByMood.merge(mood == null ? "(no mood)" : mood, revenue[i], Long::sum);
+        }
+        out.println("\nBy drink type:");
+        unitsByType.forEach((type, n) -> out.printf("  %-12s %d cups%n", type, n));
+        out.println("\nBy mood:");
+        revenueByMood.forEach((mood, r) -> out.printf("  %-12s %s%n", mood, PesoFormat.format(r)));
+
+        Integer[] top = new Integer[customers.size()];
+        for (int i = 0; i < top.length; i++) top[i] = i;
+        Arrays.sort(top, (a, b) -> Long.compare(customerSpend[b], customerSpend[a]));
+        out.println("\nTop customers:");
+        for (int i = 0; i < Math.min(TOP_CUSTOMERS, top.length); i++) {
+            int c = top[i];
+            out.printf("  %-20s %d visit%s  %s%n", new String(customers.keyAt(c), StandardCharsets.UTF_8),
+                    customerVisits[c], customerVisits[c] == 1 ? " " : "s", PesoFormat.format(customerSpend[c]));
+        }
+
+        long busiest = 1;
+        for (long n : ordersByHour) busiest = Math.max(busiest, n);
+        out.println("\nBy hour:");
+        for (int h = 0; h < 24; h++) {
+            if (ordersByHour[h] == 0) continue;
+            int bar = (int) Math.max(1, ordersByHour[h] * 20 / busiest);
+            out.printf("  %02d:00  %-20s %d orders  %s%n", h, "█".repeat(bar), ordersByHour[h], PesoFormat.format(revenueByHour[h]));
+        }
+        out.println("──────────────────────────────────────────");
+    }
+}
+
+/**
+ * A peso amount held as whole centavos, so cart and receipt totals add up exactly.
+ */
+final class Money implements Comparable<Money> {
+    static final Money ZERO = new Money(0);
+
+    private final long centavos;
+
+    private Money(long centavos) { this.centavos = centavos; }
+
+    static Money ofPesos(long pesos) { return new Money(Math.multiplyExact(pesos, 100L)); }
+    static Money ofCentavos(long centavos) { return centavos == 0 ? ZERO : new Money(centavos); }
+
+    public long centavos() { return centavos; }
+
+    @Override
+    public int compareTo(Money other) { return Long.compare(centavos, other.centavos); }
+
+    @Override
+    public boolean equals(Object o) { return o instanceof Money && ((Money) o).centavos == centavos; }
+
+    @Override
+    public int hashCode() { return Long.hashCode(centavos); }
+
+    @Override
+    public String toString() { return PesoFormat.format(centavos); }
+}
+
+/**
+ * The one place money gets formatted, as "₱1,234.50" (matching the en-PH currency format).
+ * Stateless apart from a per-thread scratch buffer, so it is safe to share between threads.
+ */
+final class PesoFormat {
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(24));
+
+    private PesoFormat() {}
+
+    static String format(long centavos) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        return append(sb, centavos).toString();
+    }
+
+    static StringBuilder append(StringBuilder sb, long centavos) {
+        if (centavos < 0) sb.append('-');
+        sb.append('₱');
+        return appendDigits(sb, Math.abs(centavos), true);
+    }
+
+    // "1234.50": no symbol or grouping, for machine-readable output
+    static StringBuilder appendPlain(StringBuilder sb, long centavos) {
+        if (centavos < 0) sb.append('-');
+        return appendDigits(sb, Math.abs(centavos), false);
+    }
+
+    private static StringBuilder appendDigits(StringBuilder sb, long centavos, boolean grouping) {
+        long pesos = centavos / 100;
+        int cents = (int) (centavos % 100);
+        if (grouping && pesos >= 1000) {
+            appendGrouped(sb, pesos);
+        } else {
+            sb.append(pesos);
+        }
+        sb.append('.');
+        if (cents < 10) sb.append('0');
+        return sb.append(cents);
+    }
+
+    private static void appendGrouped(StringBuilder sb, long pesos) {
+        if (pesos >= 1000) {
+            appendGrouped(sb, pesos / 1000);
+            sb.append(',');
+            long group = pesos % 1000;
+            if (group < 100) sb.append('0');
+            if (group < 10) sb.append('0');
+            sb.append(group);
+        } else {
+            sb.append(pesos);
+        }
+    }
+}
+
+abstract class Drink {
+    // How long each brew() pauses for effect; batch/replay mode sets this to 0
+    private static volatile long brewMillis = 450;
+
+    static void setBrewMillis(long millis) { brewMillis = millis; }
+
+    static void pauseForBrew() {
+        if (brewMillis <= 0) return;
+        try { TimeUnit.MILLISECONDS.sleep(brewMillis); } catch (InterruptedException ignored) {}
+    }
+
+    private final String name;
+    private List<String> ingredients;
+    private String description;
+    private boolean frozen; // shared catalog prototypes are read-only
+
+    public Drink(String name) {
+        this.name = name;
+        this.ingredients = new ArrayList<>();
+        this.description = "";
+    }
+
+    public String getName() { return name; }
+    public List<String> getIngredients() { return frozen ? ingredients : Collections.unmodifiableList(ingredients); }
+    public void addIngredient(String ingredient) { checkNotFrozen(); ingredients.add(ingredient); }
+    public void setDescription(String desc) { checkNotFrozen(); this.description = desc; }
+    public String getDescription() { return description; }
+    public boolean isFrozen() { return frozen; }
+
+    // Locks the drink so it can be handed out as a shared flyweight
+    void freeze() {
+        if (frozen) return;
+        ingredients = List.copyOf(ingredients);
+        frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) throw new IllegalStateException(name + " is a shared catalog drink; customize a copy instead");
+    }
+    // Prints the brewing steps and hands the timed work to a station; completes when the drink is made
+    public abstract CompletableFuture<Drink> brew(PrintStream out);
+
+    public CompletableFuture<Drink> brew() { return brew(System.out); }
+
+    // Seconds to make this many in one go behind the counter: setup once, then a little per extra cup
+    public long prepSeconds(int cups) { return 90 + 20L * (cups - 1); }
+
+    protected CompletableFuture<Drink> brewAtStation() {
+        return BrewScheduler.shared().submit(this);
+    }
+    public void serve() { serve(System.out); }
+
+    public void serve(PrintStream out) {
+        out.println("\nYour drink is ready!");
+        out.println(formatTitle(this.getName()));
+        out.println("\"" + this.getDescription() + "\"");
+        out.println("Ingredients: " + String.join(", ", this.getIngredients()));
+    }
+
+    protected String formatTitle(String title) { return "* " + title.toUpperCase() + " *"; }
+}
+
+class Smoothie extends Drink {
+    public Smoothie(String name) { super(name); }
+    // The blend is the slow part; a fuller jug adds a little per cup
+    @Override
+    public long prepSeconds(int cups) { return 240 + 15L * (cups - 1); }
+    @Override
+    public CompletableFuture<Drink> brew(PrintStream out) {
+        out.println("\n✨ Brewing your " + getName() + "...");
+        out.println("---------------------------------------");
+        for (String ing : getIngredients()) out.println("🥭 Adding " + ing + "...");
+        out.println("🧊 Blending until smooth and bright...");
+        return brewAtStation();
+    }
+}
+
+class Tea extends Drink {
+    public Tea(String name) { super(name); }
+    // One steep serves the pot; pouring more is quick
+    @Override
+    public long prepSeconds(int cups) { return 120 + 10L * (cups - 1); }
+    @Override
+    public CompletableFuture<Drink> brew(PrintStream out) {
+        out.println("\n🍵 Brewing your " + getName() + "...");
+        out.println("---------------------------------------");
+        for (String ing : getIngredients()) out.println("🌿 Steeping " + ing + "...");
+        out.println("🫖 Letting the warmth steep softly...");
+        return brewAtStation();
+    }
+}
 
 class Coffee extends Drink {
     public Coffee(String name) { super(name); }
+    // Each shot pulls on its own
+    @Override
+    public long prepSeconds(int cups) { return 90 + 30L * (cups - 1); }
+    @Override
+    public CompletableFuture<Drink> brew(PrintStream out) {
+        out.println("\n☕ Brewing your " + getName() + "...");
+        out.println("---------------------------------------");
+        for (String ing : getIngredients()) out.println("💥 Preparing " + ing + "...");
+        out.println("🔥 Extracting a bold and comforting pour...");
+        return brewAtStation();
+    }
+}
+
+class Elixir extends Drink {
+    public Elixir(String name) { super(name); }
+    @Override
+    public long prepSeconds(int cups) { return 150 + 20L * (cups - 1); }
+    @Override
+    public CompletableFuture<Drink> brew(PrintStream out) {
+        out.println("\n🌟 Brewing your " + getName() + "...");
+        out.println("---------------------------------------");
+        for (String ing : getIngredients()) out.println("✨ Mixing " + ing + " gently...");
+        out.println("💫 Infusing with a whisper of comfort...");
+        return brewAtStation();
+    }
+}
+
+class Cocoa extends Drink {
+    public Cocoa(String name) { super(name); }
+    @Override
+    public long prepSeconds(int cups) { return 100 + 20L * (cups - 1); }
     @Override
-    public void brew() {
-        System.out.println("\n☕ Brewing your " + getName() + "...");
-        System.out.println("---------------------------------------");
-        for (String ing : getIngredients()) System.out.println("💥 Preparing " + ing + "...");
-        try { TimeUnit.MILLISECONDS.sleep(450); } catch (InterruptedException ignored) {}
-        System.out.println("🔥 Extracting a bold and comforting pour...");
+    public CompletableFuture<Drink> brew(PrintStream out) {
+        out.println("\n🍫 Brewing your " + getName() + "...");
+        out.println("---------------------------------------");
+        for (String ing : getIngredients()) out.println("🫗 Melting/Adding " + ing + "...");
+        out.println("☁️  Stirring until nostalgia warms the cup...");
+        return brewAtStation();
+    }
+}
+
+/**
+ * The drink line behind the counter. Checked-out orders become batches of identical drinks
+ * (up to MAX_BATCH cups made in one go), and each drink type's batches wait in a heap for that
+ * type's brewing stations, in the order they were queued. Prep times come from each Drink
+ * subclass, and everything runs on the wall clock, so estimates are real minutes.
+ * Scheduling is O(log n): a new batch is projected from the lane's "stations free at" heap, and
+ * cups only join the batch at the back of the line, so nobody already waiting gets pushed back.
+ * A lane is re-projected in full only when its station count changes.
+ */
+final class BaristaQueue {
+    static final int MAX_BATCH = 4;
+
+    /** Several cups of one drink, made together at one station. */
+    static final class Batch {
+        final String key;
+        final long seq;
+        final long queuedAt;
+        int cups;
+        long startAt = -1; // -1 while waiting
+        long projectedStart;
+        long readyAt;      // projected until the batch starts, then fixed
+
+        Batch(String key, long seq, long queuedAt) {
+            this.key = key;
+            this.seq = seq;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /** What a customer is waiting for; readyAt() re-reads the live queue each time. */
+    final class Ticket {
+        private final List<Batch> batches;
+
+        private Ticket(List<Batch> batches) {
+            this.batches = batches;
+        }
+
+        public long readyAt() {
+            synchronized (BaristaQueue.this) {
+                refresh(clock());
+                long ready = 0;
+                for (Batch b : batches) ready = Math.max(ready, b.readyAt);
+                return ready;
+            }
+        }
+    }
+
+    private final class Lane {
+        final String type;
+        final PriorityQueue<Batch> waiting = new PriorityQueue<>(Comparator.comparingLong((Batch b) -> b.seq));
+        Batch last; // back of the line; identical drinks can still join it while it waits
+        final PriorityQueue<Long> stationsFree = new PriorityQueue<>(); // when each station next frees up
+        final PriorityQueue<Long> projectedFree = new PriorityQueue<>(); // same, after every waiting batch
+        final List<Batch> making = new ArrayList<>();
+        boolean dirty;
+
+        Lane(String type) {
+            this.type = type;
+        }
+
+        void add(Batch b) {
+            waiting.add(b);
+            last = b;
+            if (!dirty) project(b, projectedFree);
+        }
+
+        // One more cup in the last batch only moves that batch's own finish time
+        void grow(Batch b, int cups) {
+            b.cups += cups;
+            if (dirty) return;
+            projectedFree.remove(b.readyAt);
+            b.readyAt = b.projectedStart + prepMillis(b);
+            projectedFree.add(b.readyAt);
+        }
+
+        boolean canJoin(String key) {
+            return last != null && last.startAt < 0 && last.key.equals(key) && last.cups < MAX_BATCH;
+        }
+
+        // Starts whatever can have started by now, and retires finished batches
+        void advance(long now) {
+            int stations = BrewScheduler.shared().stationCount(type);
+            while (stationsFree.size() < stations) stationsFree.add(now);
+            if (stationsFree.size() > stations) {
+                List<Long> keep = new ArrayList<>(stationsFree);
+                Collections.sort(keep);
+                stationsFree.clear();
+                stationsFree.addAll(keep.subList(0, stations));
+                dirty = true;
+            }
+            while (!waiting.isEmpty()) {
+                Batch next = waiting.peek();
+                long start = Math.max(stationsFree.peek(), next.queuedAt);
+                if (start > now) break;
+                waiting.poll();
+                stationsFree.poll();
+                next.startAt = start;
+                next.readyAt = start + prepMillis(next);
+                stationsFree.add(next.readyAt);
+                making.add(next);
+            }
+            making.removeIf(b -> b.readyAt <= now);
+            if (dirty || projectedFree.size() != stationsFree.size()) reproject();
+        }
+
+        void reproject() {
+            projectedFree.clear();
+            projectedFree.addAll(stationsFree);
+            Batch[] inLine = waiting.toArray(new Batch[0]);
+            Arrays.sort(inLine, waiting.comparator());
+            for (Batch b : inLine) project(b, projectedFree);
+            dirty = false;
+        }
+
+        private void project(Batch b, PriorityQueue<Long> free) {
+            b.projectedStart = Math.max(free.poll(), b.queuedAt);
+            b.readyAt = b.projectedStart + prepMillis(b);
+            free.add(b.readyAt);
+        }
+    }
+
+    private final CatalogStore catalog;
+    private final Map<String, Lane> lanes = new TreeMap<>();
+    private long nextSeq;
+
+    BaristaQueue(CatalogStore catalog) {
+        this.catalog = catalog;
+    }
+
+    /** Queues a checked-out order's drinks; identical drinks join the last waiting batch when there's room. */
+    public synchronized Ticket enqueue(Map<String, Integer> items) {
+        long now = clock();
+        refresh(now);
+        List<Batch> mine = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : items.entrySet()) {
+            String key = e.getKey();
+            Lane lane = laneFor(key, now);
+            int cups = e.getValue();
+            while (cups > 0) {
+                Batch b;
+                int take;
+                if (lane.canJoin(key)) {
+                    b = lane.last;
+                    take = Math.min(cups, MAX_BATCH - b.cups);
+                    lane.grow(b, take);
+                } else {
+                    b = new Batch(key, nextSeq++, now);
+                    take = Math.min(cups, MAX_BATCH);
+                    b.cups = take;
+                    lane.add(b);
+                }
+                cups -= take;
+                if (!mine.contains(b)) mine.add(b);
+            }
+        }
+        return new Ticket(mine);
+    }
+
+    public synchronized int pendingCups() {
+        refresh(clock());
+        int cups = 0;
+        for (Lane lane : lanes.values()) {
+            for (Batch b : lane.waiting) cups += b.cups;
+            for (Batch b : lane.making) cups += b.cups;
+        }
+        return cups;
+    }
+
+    public synchronized void printStatus(PrintStream out) {
+        long now = clock();
+        refresh(now);
+        Screen screen = Screen.begin();
+        screen.line().line("────────── ✧ BARISTA QUEUE ✧ ──────────");
+        boolean idle = true;
+        for (Lane lane : lanes.values()) {
+            if (lane.waiting.isEmpty() && lane.making.isEmpty()) continue;
+            idle = false;
+            int waitingCups = 0;
+            long clear = now;
+            for (Batch b : lane.waiting) {
+                waitingCups += b.cups;
+                clear = Math.max(clear, b.readyAt);
+            }
+            for (Batch b : lane.making) clear = Math.max(clear, b.readyAt);
+            screen.padRight(lane.type, 9).text(" making ").number(lane.making.size())
+                    .text(" batch(es)   waiting ").number(waitingCups).text(" cup(s)   clear ")
+                    .text(describe(clear, now)).line();
+        }
+        if (idle) screen.line("Nothing in the queue — the baristas are wiping the counter.");
+        screen.line("───────────────────────────────────────");
+        screen.flushTo(out);
+    }
+
+    // "14:32 (about 6 min)"
+    static String describe(long readyAt, long now) {
+        long minutes = Math.max(0, (readyAt - now + 59_999) / 60_000);
+        String clock = Instant.ofEpochMilli(readyAt).atZone(ZoneId.systemDefault()).toLocalTime()
+                .truncatedTo(ChronoUnit.MINUTES).toString();
+        return minutes == 0 ? clock + " (any moment now)" : clock + " (about " + minutes + " min)";
+    }
+
+    static long clock() { return System.currentTimeMillis(); }
+
+    private void refresh(long now) {
+        for (Lane lane : lanes.values()) lane.advance(now);
+    }
+
+    private Lane laneFor(String key, long now) {
+        String type = catalog.current().getRecipes().prototype(key).getClass().getSimpleName();
+        Lane lane = lanes.get(type);
+        if (lane == null) {
+            lane = new Lane(type);
+            lanes.put(type, lane);
+            lane.advance(now); // opens its stations
+        }
+        return lane;
+    }
+
+    private long prepMillis(Batch b) {
+        return TimeUnit.SECONDS.toMillis(catalog.current().getRecipes().prototype(b.key).prepSeconds(b.cups));
     }
 }
 
-class Elixir extends Drink {
-    public Elixir(String name) { super(name); }
-    @Override
-    public void brew() {
-        System.out.println("\n🌟 Brewing your " + getName() + "...");
-        System.out.println("---------------------------------------");
-        for (String ing : getIngredients()) System.out.println("✨ Mixing " + ing + " gently...");
-        try { TimeUnit.MILLISECONDS.sleep(450); } catch (InterruptedException ignored) {}
-        System.out.println("💫 Infusing with a whisper of comfort...");
+/**
+ * Brewing stations per drink type. Each type gets its own small pool of station threads,
+ * so a slow smoothie blend never holds up the counter or the tea station.
+ */
+class BrewScheduler {
+    private static final int DEFAULT_STATIONS = 2;
+    private static final BrewScheduler SHARED = new BrewScheduler();
+
+    private final Map<String, Station> stations = new ConcurrentHashMap<>();
+
+    static BrewScheduler shared() { return SHARED; }
+
+    // Parses "Coffee=3,Smoothie=1" style settings
+    public void configure(String spec) {
+        for (String part : spec.split(",")) {
+            String[] kv = part.split("=");
+            if (kv.length != 2) continue;
+            try {
+                setStations(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+            } catch (NumberFormatException ignored) {
+                // leave that drink type at its current size
+            }
+        }
+    }
+
+    public void setStations(String drinkType, int count) {
+        if (count <= 0) return;
+        stationFor(drinkType).resize(count);
+    }
+
+    public CompletableFuture<Drink> submit(Drink drink) {
+        return stationFor(drink.getClass().getSimpleName()).brew(drink);
+    }
+
+    public int stationCount(String drinkType) {
+        return stationFor(drinkType).size();
+    }
+
+    public void printStatus(PrintStream out) {
+        out.println("\n────────── ✧ BREWING STATIONS ✧ ──────────");
+        if (stations.isEmpty()) {
+            out.println("All stations are idle — nothing brewed yet.");
+        }
+        List<String> types = new ArrayList<>(stations.keySet());
+        Collections.sort(types);
+        for (String type : types) {
+            Station st = stations.get(type);
+            out.printf("%-9s stations %d   busy %d   queued %d   done %d   utilisation %.0f%%%n",
+                    type, st.size(), st.busy(), st.queueDepth(), st.completed(), st.utilisation() * 100);
+        }
+        out.println("──────────────────────────────────────────");
+    }
+
+    private Station stationFor(String drinkType) {
+        return stations.computeIfAbsent(drinkType, t -> new Station(t, DEFAULT_STATIONS));
+    }
+
+    private static final class Station {
+        private final ThreadPoolExecutor pool;
+        private final LongAdder busyNanos = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+        private long stationNanos;                   // size x time, summed up to sizedAt
+        private long sizedAt = System.nanoTime();
+
+        Station(String drinkType, int size) {
+            AtomicInteger counter = new AtomicInteger();
+            pool = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "brew-" + drinkType + "-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        CompletableFuture<Drink> brew(Drink drink) {
+            long submitted = System.nanoTime();
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                try {
+                    Drink.pauseForBrew();
+                    return drink;
+                } finally {
+                    long end = System.nanoTime();
+                    busyNanos.add(end - start);
+                    completed.increment();
+                    OrderEventBus.shared().brewed(drink.getName(), end - submitted);
+                }
+            }, pool);
+        }
+
+        synchronized void resize(int size) {
+            long now = System.nanoTime();
+            stationNanos += (now - sizedAt) * (long) size();
+            sizedAt = now;
+            if (size > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(size);
+                pool.setCorePoolSize(size);
+            } else {
+                pool.setCorePoolSize(size);
+                pool.setMaximumPoolSize(size);
+            }
+        }
+
+        int size() { return pool.getCorePoolSize(); }
+        int busy() { return pool.getActiveCount(); }
+        int queueDepth() { return pool.getQueue().size(); }
+        long completed() { return completed.sum(); }
+
+        // Share of station time spent brewing since the station opened, counting each size for as long as it held
+        synchronized double utilisation() {
+            long elapsed = stationNanos + (System.nanoTime() - sizedAt) * (long) size();
+            return elapsed <= 0 ? 0.0 : Math.min(1.0, busyNanos.sum() / (double) elapsed);
+        }
     }
 }
 
-class Cocoa extends Drink {
-    public Cocoa(String name) { super(name); }
-    @Override
-    public void brew() {
-        System.out.println("\n🍫 Brewing your " + getName() + "...");
-        System.out.println("---------------------------------------");
-        for (String ing : getIngredients()) System.out.println("🫗 Melting/Adding " + ing + "...");
-        try { TimeUnit.MILLISECONDS.sleep(450); } catch (InterruptedException ignored) {}
-        System.out.println("☁️  Stirring until nostalgia warms the cup...");
+/**
+ * One drink's fixed recipe: display name, drink type, ingredients and description.
+ */
+final class Recipe {
+    private final String key;
+    private final String name;
+    private final Function<String, Drink> type;
+    private final String description;
+    private final List<String> ingredients;
+
+    Recipe(String key, String name, Function<String, Drink> type, String description, List<String> ingredients) {
+        this.key = key;
+        this.name = name;
+        this.type = type;
+        this.description = description;
+        this.ingredients = List.copyOf(ingredients);
+    }
+
+    public String getKey() { return key; }
+    public String getName() { return name; }
+    public String getDescription() { return description; }
+    public List<String> getIngredients() { return ingredients; }
+
+    // A fresh, changeable drink made to this recipe
+    public Drink newDrink() {
+        Drink d = type.apply(name);
+        for (String ing : ingredients) d.addIngredient(ing);
+        d.setDescription(description);
+        return d;
     }
 }
 
-class MoodAnalyzer {
+/**
+ * Every recipe in one catalog version. Each key also gets a frozen prototype Drink,
+ * so previews and mood suggestions hand out the same shared instance instead of building one.
+ */
+final class RecipeCatalog {
+    private static final Recipe HOUSE_TEA =
+            new Recipe("house_tea", "House Tea", Tea::new, "A simple sip.", List.of("water"));
+
+    private final Map<String, Recipe> byKey = new LinkedHashMap<>();
+    private final List<Recipe> byOrdinal = new ArrayList<>();
+    private final Map<String, Integer> ordinalByKey = new HashMap<>();
+    private final Map<String, Drink> prototypes = new HashMap<>();
+    private final Drink houseTea;
+
+    RecipeCatalog(List<Recipe> recipes) {
+        for (Recipe r : recipes) {
+            byKey.put(r.getKey(), r);
+            ordinalByKey.put(r.getKey(), byOrdinal.size());
+            byOrdinal.add(r);
+            prototypes.put(r.getKey(), freeze(r.newDrink()));
+        }
+        houseTea = freeze(HOUSE_TEA.newDrink());
+    }
+
+    private static Drink freeze(Drink d) {
+        d.freeze();
+        return d;
+    }
+
+    public Recipe get(String key) { return byKey.getOrDefault(key, HOUSE_TEA); }
+    public boolean contains(String key) { return byKey.containsKey(key); }
+    public Collection<Recipe> all() { return Collections.unmodifiableCollection(byKey.values()); }
+
+    // Dense 0..size()-1 numbering of the recipes, for counting in plain arrays
+    public int size() { return byOrdinal.size(); }
+    public Recipe at(int ordinal) { return byOrdinal.get(ordinal); }
+    public int ordinalOf(String key) { return ordinalByKey.getOrDefault(key, -1); }
+
+    // Shared read-only drink for a key (House Tea when the key is unknown)
+    public Drink prototype(String key) { return prototypes.getOrDefault(key, houseTea); }
+
+    // A private copy for a customer who wants to change the drink
+    public Drink customize(String key) { return get(key).newDrink(); }
+}
+
+/**
+ * One immutable version of everything the café sells: drinks, prices, emojis, moods, quotes
+ * and recipes, plus the name index and the rendered menu. A reload builds a whole new Catalog
+ * and CatalogStore publishes it with one volatile write, so a reader holding a Catalog never
+ * sees half of a reload.
+ */
+final class Catalog {
+    static final Map<String, Function<String, Drink>> DRINK_TYPES = Map.of(
+            "Coffee", Coffee::new, "Tea", Tea::new, "Smoothie", Smoothie::new,
+            "Elixir", Elixir::new, "Cocoa", Cocoa::new);
+
+    private final long version;
+    private final RecipeCatalog recipes;
+    private final Map<String, Money> priceByKey;
+    private final Map<String, String> nameByKey;
+    private final Map<String, String> emojiByKey;
     private final Map<String, String> moodToDrinkKey;
-    private final List<String> supportedMoods;
+    private final Map<String, String> keyToMood;
     private final Map<String, String> quoteByMood;
     private final Map<String, String> emojiByMood;
-    private final Map<String, String> keyToMood;
+    private final List<String> supportedMoods;
+    private final DrinkNameIndex nameIndex;
+    private final MoodClassifier moodClassifier;
+    private volatile String renderedMenu; // built on first use unless a snapshot supplied it
+
+    private Catalog(Builder b, long version) {
+        this.version = version;
+        this.recipes = new RecipeCatalog(b.recipes);
+        this.priceByKey = Map.copyOf(b.priceByKey);
+        this.nameByKey = Map.copyOf(b.nameByKey);
+        this.emojiByKey = Map.copyOf(b.emojiByKey);
+        this.moodToDrinkKey = Map.copyOf(b.moodToDrinkKey);
+        this.keyToMood = Map.copyOf(b.keyToMood);
+        this.quoteByMood = Map.copyOf(b.quoteByMood);
+        this.emojiByMood = Map.copyOf(b.emojiByMood);
+        this.supportedMoods = List.copyOf(b.supportedMoods);
+        this.nameIndex = new DrinkNameIndex(nameByKey);
+        this.moodClassifier = new MoodClassifier(supportedMoods);
+        this.renderedMenu = b.renderedMenu;
+    }
+
+    public long getVersion() { return version; }
+    public RecipeCatalog getRecipes() { return recipes; }
+    public DrinkNameIndex getNameIndex() { return nameIndex; }
+    public MoodClassifier getMoodClassifier() { return moodClassifier; }
+    public String getRenderedMenu() {
+        String menu = renderedMenu;
+        if (menu == null) renderedMenu = menu = renderMenu(); // a race just renders it twice
+        return menu;
+    }
+    public int size() { return nameByKey.size(); }
+
+    public String getNameForKey(String key) { return nameByKey.getOrDefault(key, "Unknown Drink"); }
+    public Money getPriceForKey(String key) { return priceByKey.getOrDefault(key, Money.ZERO); }
+    public String getEmojiForKey(String key) { return emojiByKey.getOrDefault(key, ""); }
+
+    public List<String> getSupportedMoods() { return supportedMoods; }
+    public String getKeyForMood(String mood) { return moodToDrinkKey.get(mood); }
+    public String getMoodForKey(String key) { return keyToMood.get(key); }
+    public String getQuoteForMood(String mood) { return quoteByMood.getOrDefault(mood, ""); }
+    public String getEmojiForMood(String mood) { return emojiByMood.getOrDefault(mood, ""); }
+
+    private String renderMenu() {
+        Screen screen = new Screen();
+        screen.line();
+        screen.line("╔══════════ ✧ DRINK MENU ✧ ══════════╗");
+        // print each mood mapping for clarity
+        List<String> keys = new ArrayList<>(nameByKey.keySet());
+        Collections.sort(keys);
+        for (String key : keys) {
+            String mood = keyToMood.get(key);
+            screen.text("  ").padRight(mood == null ? "" : capitalize(mood), 13)
+                    .text(" — ").padRight(nameByKey.get(key), 28)
+                    .text(" ").money(priceByKey.get(key).centavos())
+                    .text(" ").text(emojiByKey.get(key)).line();
+        }
+        screen.line("╚══════════════════════════════════════╝");
+        return screen.toString();
+    }
+
+    private static String capitalize(String s) {
+        if (s == null || s.isEmpty()) return s;
+        return s.substring(0,1).toUpperCase() + s.substring(1);
+    }
+
+    // The café's own drinks, used when there is no catalog file
+    static Catalog builtIn() {
+        Builder b = new Builder();
+        // Prices chosen to match the A + C aesthetic suggestions
+        b.drink("evergreen_iced_matcha", "Evergreen Iced Matcha", 160, "🍃", "Coffee", "distracted",
+                "Focus is simply the choice to return your attention, again and again.",
+                "matcha powder", "honey", "oat milk");
+        b.drink("misty_matcha_delight", "Misty Matcha Delight", 170, "🌙", "Coffee", "sleepy",
+                "If you lack energy, start anyway. Consistency creates the momentum.",
+                "matcha powder", "honey", "oat milk", "espresso shot");
+        b.drink("frosted_matcha_frappe", "Frosted Matcha Frappe", 165, "❄️", "Coffee", "cranky",
+                "Pause. Your mood is a temporary state, not a permanent perspective.",
+                "matcha powder", "honey", "oat milk", "whipped cream");
+        b.drink("comfort_matcha_latte", "Comfort Matcha Latte", 155, "🍵", "Coffee", "overwhelmed",
+                "Break the giant task into tiny, visible beginnings.",
+                "matcha powder", "honey", "steamed oat milk");
+        b.drink("dream_matcha_smoothie", "Dream Matcha Smoothie", 150, "🥭", "Smoothie", "sluggish",
+                "Don't wait for motivation to arrive. Start moving, and it will catch up.",
+                "matcha powder", "honey", "oat milk", "frozen banana");
+        b.drink("caramel_memory_mocha", "Caramel Memory Mocha", 170, "🍫", "Coffee", "nostalgic",
+                "Sip and remember — sweet moments never really fade.",
+                "espresso", "caramel syrup", "steamed milk", "whipped cream");
+        b.drink("midnight_mocha_tears", "Midnight Mocha Tears", 175, "💧", "Coffee", "heartbroken",
+                "Even the bitter has its beauty — let it teach you to heal.",
+                "dark chocolate", "espresso", "sea salt", "milk foam");
+        b.drink("sunrise_vanilla_bliss", "Sunrise Vanilla Bliss", 140, "🌅", "Smoothie", "hopeful",
+                "Every sunrise tastes like another chance to begin again.",
+                "vanilla", "honey", "oat milk", "dash of cinnamon");
+        b.drink("autumn_chai_calm", "Autumn Chai Calm", 145, "🍂", "Tea", "reflective",
+                "Slow down — some thoughts are best brewed in silence.",
+                "chai spices", "black tea", "milk", "nutmeg");
+        b.drink("berry_bloom_blizz", "Berry Bloom Blizz", 150, "🍓", "Smoothie", "joyful",
+                "Let happiness bubble — you deserve to sparkle today.",
+                "strawberry", "raspberry", "soda water", "mint leaves");
+        b.drink("mocha_mystery_mix", "Mocha Mystery Mix", 160, "🌀", "Coffee", "bored",
+                "Life’s too bland for dull flavors — stay curious!",
+                "espresso", "cocoa", "choco flakes");
+        b.drink("vanilla_dream_brew", "Vanilla Dream Brew", 145, "🌸", "Smoothie", "inspired",
+                "May every sip spark another idea worth chasing.",
+                "vanilla", "almond milk", "cinnamon dust");
+        b.drink("sparkling_strawberry", "Sparkling Strawberry", 140, "✨", "Elixir", "excited",
+                "You’re fizzing with life — let this match your thrill!",
+                "strawberry syrup", "soda water", "mint");
+        b.drink("honey_warmth_milk", "Honey Warmth Milk", 135, "🐚", "Elixir", "lonely",
+                "A cup to remind you — you’re never alone.",
+                "milk", "honey", "cinnamon");
+        b.drink("lavender_serenity_latte", "Lavender Serenity Latte", 150, "💜", "Coffee", "anxious",
+                "Let the aroma slow your thoughts and soothe your soul.",
+                "lavender syrup", "steamed milk", "vanilla");
+        return b.build(1);
+    }
+
+    /**
+     * Reads a catalog file: one drink per line as
+     * {@code key | name | price | emoji | type | mood | quote | ingredient, ingredient, ...}.
+     * Blank lines and lines starting with # are skipped; the mood may be empty.
+     */
+    static Catalog load(Path file, long version) throws IOException {
+        Builder b = new Builder();
+        int lineNo = 0;
+        for (String raw : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNo++;
+            String line = raw.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\|", -1);
+            if (f.length != 8) {
+                throw new IOException(file + " line " + lineNo + ": expected 8 fields separated by '|', found " + f.length);
+            }
+            for (int i = 0; i < f.length; i++) f[i] = f[i].trim();
+            long centavos;
+            try {
+                centavos = new BigDecimal(f[2]).movePointRight(2).longValueExact();
+            } catch (ArithmeticException | NumberFormatException e) {
+                throw new IOException(file + " line " + lineNo + ": bad price '" + f[2] + "'");
+            }
+            List<String> ingredients = new ArrayList<>();
+            for (String ing : f[7].split(",")) {
+                if (!ing.isBlank()) ingredients.add(ing.trim());
+            }
+            try {
+                b.drink(f[0], f[1], centavos, f[3], f[4], f[5], f[6], ingredients);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(file + " line " + lineNo + ": " + e.getMessage());
+            }
+        }
+        if (b.recipes.isEmpty()) throw new IOException(file + " has no drinks");
+        return b.build(version);
+    }
+
+    static final class Builder {
+        private final List<Recipe> recipes = new ArrayList<>();
+        private final Map<String, Money> priceByKey = new HashMap<>();
+        private final Map<String, String> nameByKey = new HashMap<>();
+        private final Map<String, String> emojiByKey = new HashMap<>();
+        private final Map<String, String> moodToDrinkKey = new HashMap<>();
+        private final Map<String, String> keyToMood = new HashMap<>();
+        private final Map<String, String> quoteByMood = new HashMap<>();
+        private final Map<String, String> emojiByMood = new HashMap<>();
+        private final List<String> supportedMoods = new ArrayList<>();
+        private String renderedMenu;
+        private final Map<String, String> ingredientPool = new HashMap<>();
+
+        private void drink(String key, String name, long pesos, String emoji, String type, String mood,
+                           String quote, String... ingredients) {
+            drink(key, name, Money.ofPesos(pesos).centavos(), emoji, type, mood, quote, Arrays.asList(ingredients));
+        }
+
+        void drink(String key, String name, long centavos, String emoji, String type, String mood,
+                   String quote, List<String> ingredients) {
+            if (key.isEmpty() || name.isEmpty()) throw new IllegalArgumentException("drink needs a key and a name");
+            if (nameByKey.containsKey(key)) throw new IllegalArgumentException("duplicate drink key '" + key + "'");
+            Function<String, Drink> drinkType = DRINK_TYPES.get(type);
+            if (drinkType == null) throw new IllegalArgumentException("unknown drink type '" + type + "'");
+
+            // "oat milk", "honey"... appear in many recipes; keep one String per ingredient
+            List<String> shared = new ArrayList<>(ingredients.size());
+            for (String ing : ingredients) shared.add(ingredientPool.computeIfAbsent(ing, i -> i));
+            recipes.add(new Recipe(key, name, drinkType, quote, shared));
+            priceByKey.put(key, Money.ofCentavos(centavos));
+            nameByKey.put(key, name);
+            emojiByKey.put(key, emoji);
+
+            if (!mood.isEmpty()) {
+                String m = mood.toLowerCase();
+                if (moodToDrinkKey.containsKey(m)) throw new IllegalArgumentException("mood '" + m + "' is used twice");
+                moodToDrinkKey.put(m, key);
+                keyToMood.put(key, m);
+                supportedMoods.add(m);
+                quoteByMood.put(m, quote);
+                emojiByMood.put(m, emoji);
+            }
+        }
+
+        // A menu rendered earlier from these same drinks (see CatalogSnapshot)
+        void renderedMenu(String menu) {
+            this.renderedMenu = menu;
+        }
+
+        Catalog build(long version) {
+            return new Catalog(this, version);
+        }
+    }
+}
+
+/**
+ * Scores free text ("I'm kind of tired and stressed") against the catalog's moods. Every mood
+ * word and its synonyms are compiled into one Aho-Corasick automaton over a 27-letter alphabet
+ * (a-z plus a word break), so a sentence is classified in a single pass with no allocation
+ * beyond the short result list. Phrases only match on whole words.
+ */
+final class MoodClassifier {
+    private static final int ALPHABET = 27; // 0 = word break, 1..26 = a..z
+    private static final double MOOD_WORD_WEIGHT = 2.0;
+    private static final double SYNONYM_WEIGHT = 1.0;
+
+    // Everyday ways of saying each mood; moods missing from the catalog are ignored
+    private static final Map<String, String[]> LEXICON = Map.ofEntries(
+            Map.entry("distracted", new String[] {"unfocused", "scattered", "can't focus", "cannot focus",
+                    "all over the place", "daydreaming", "procrastinating", "zoning out"}),
+            Map.entry("sleepy", new String[] {"tired", "exhausted", "drowsy", "sleep deprived", "yawning",
+                    "fatigued", "drained", "worn out", "no energy", "low energy", "barely awake"}),
+            Map.entry("cranky", new String[] {"grumpy", "irritable", "annoyed", "irritated", "frustrated",
+                    "angry", "mad", "moody", "fed up"}),
+            Map.entry("overwhelmed", new String[] {"stressed", "swamped", "buried", "too much", "burned out",
+                    "burnt out", "under pressure", "pressured", "stretched thin", "drowning"}),
+            Map.entry("sluggish", new String[] {"lazy", "slow", "unmotivated", "lethargic", "meh", "heavy",
+                    "can't get going", "sluggy"}),
+            Map.entry("nostalgic", new String[] {"reminiscing", "remembering", "sentimental", "homesick",
+                    "memories", "the old days", "throwback"}),
+            Map.entry("heartbroken", new String[] {"sad", "devastated", "crushed", "crying", "hurt", "grieving",
+                    "broken hearted", "brokenhearted", "depressed", "blue", "breakup", "broke up"}),
+            Map.entry("hopeful", new String[] {"optimistic", "positive", "looking forward", "encouraged",
+                    "hoping", "hope", "confident", "better days"}),
+            Map.entry("reflective", new String[] {"thoughtful", "pensive", "contemplative", "introspective",
+                    "thinking", "quiet", "wondering", "deep in thought"}),
+            Map.entry("joyful", new String[] {"happy", "glad", "cheerful", "delighted", "great", "wonderful",
+                    "good", "elated", "content", "amazing", "blessed"}),
+            Map.entry("bored", new String[] {"boring", "dull", "restless", "nothing to do", "uninterested",
+                    "same old"}),
+            Map.entry("inspired", new String[] {"creative", "motivated", "curious", "imaginative",
+                    "full of ideas", "productive", "inspiration"}),
+            Map.entry("excited", new String[] {"thrilled", "pumped", "hyped", "ecstatic", "buzzing",
+                    "can't wait", "stoked", "psyched"}),
+            Map.entry("lonely", new String[] {"alone", "isolated", "left out", "lonesome", "missing someone",
+                    "no one", "nobody", "by myself"}),
+            Map.entry("anxious", new String[] {"nervous", "worried", "worry", "uneasy", "panicky", "panicking",
+                    "on edge", "tense", "scared", "afraid", "jittery", "anxiety"}));
+
+    /** A mood and how much of the sentence's signal pointed at it (0..1). */
+    static final class MoodMatch {
+        private final String mood;
+        private final double confidence;
+
+        MoodMatch(String mood, double confidence) {
+            this.mood = mood;
+            this.confidence = confidence;
+        }
+
+        public String getMood() { return mood; }
+        public double getConfidence() { return confidence; }
+    }
+
+    private final String[] moods;
+    private final int[] delta;       // node * ALPHABET + symbol -> next node
+    private final int[] outStart;    // matches ending at node n: out*[outStart[n] .. outStart[n + 1])
+    private final int[] outMood;
+    private final double[] outWeight;
+    private final ThreadLocal<double[]> scores;
+
+    MoodClassifier(List<String> catalogMoods) {
+        moods = catalogMoods.toArray(new String[0]);
+
+        // 1. trie of every pattern, with its (mood, weight) outputs
+        List<int[]> next = new ArrayList<>();
+        List<List<double[]>> out = new ArrayList<>();
+        next.add(newRow());
+        out.add(new ArrayList<>());
+        for (int m = 0; m < moods.length; m++) {
+            addPattern(next, out, moods[m], m, MOOD_WORD_WEIGHT);
+            for (String synonym : LEXICON.getOrDefault(moods[m], new String[0])) {
+                addPattern(next, out, synonym, m, SYNONYM_WEIGHT);
+            }
+        }
+
+        // 2. failure links by BFS, folded into a full transition table; outputs follow the links
+        int nodes = next.size();
+        delta = new int[nodes * ALPHABET];
+        int[] fail = new int[nodes];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            int child = next.get(0)[c];
+            delta[c] = child > 0 ? child : 0;
+            if (child > 0) queue.add(child);
+        }
+        List<Integer> order = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            order.add(node);
+            for (int c = 0; c < ALPHABET; c++) {
+                int child = next.get(node)[c];
+                if (child > 0) {
+                    fail[child] = delta[fail[node] * ALPHABET + c];
+                    delta[node * ALPHABET + c] = child;
+                    queue.add(child);
+                } else {
+                    delta[node * ALPHABET + c] = delta[fail[node] * ALPHABET + c];
+                }
+            }
+        }
+        for (int node : order) out.get(node).addAll(out.get(fail[node])); // BFS order: fail[node] is already complete
+
+        outStart = new int[nodes + 1];
+        int total = 0;
+        for (int n = 0; n < nodes; n++) {
+            outStart[n] = total;
+            total += out.get(n).size();
+        }
+        outStart[nodes] = total;
+        outMood = new int[total];
+        outWeight = new double[total];
+        for (int n = 0, i = 0; n < nodes; n++) {
+            for (double[] o : out.get(n)) {
+                outMood[i] = (int) o[0];
+                outWeight[i++] = o[1];
+            }
+        }
+        int moodCount = moods.length;
+        scores = ThreadLocal.withInitial(() -> new double[moodCount]);
+    }
+
+    /** Up to {@code k} moods found in the text, best first; empty when nothing matched. */
+    public List<MoodMatch> classify(CharSequence text, int k) {
+        double[] score = scores.get();
+        Arrays.fill(score, 0.0);
+        int state = step(0, 0);
+        boolean lastBreak = true;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            int sym = symbol(text.charAt(i));
+            if (sym < 0) continue;              // apostrophes vanish: "can't" == "cant"
+            if (sym == 0 && lastBreak) continue; // runs of spaces/punctuation count as one break
+            lastBreak = sym == 0;
+            state = step(state, sym);
+            for (int o = outStart[state]; o < outStart[state + 1]; o++) score[outMood[o]] += outWeight[o];
+        }
+        state = step(state, 0);
+        for (int o = outStart[state]; o < outStart[state + 1]; o++) score[outMood[o]] += outWeight[o];
+
+        double sum = 0;
+        for (double v : score) sum += v;
+        if (sum == 0) return List.of();
+        List<MoodMatch> best = new ArrayList<>(k);
+        for (int pick = 0; pick < k; pick++) {
+            int top = -1;
+            for (int m = 0; m < score.length; m++) {
+                if (score[m] > 0 && (top < 0 || score[m] > score[top])) top = m;
+            }
+            if (top < 0) break;
+            best.add(new MoodMatch(moods[top], score[top] / sum));
+            score[top] = 0;
+        }
+        return best;
+    }
+
+    private int step(int state, int sym) {
+        return delta[state * ALPHABET + sym];
+    }
+
+    // Patterns are wrapped in word breaks so "sad" never matches inside "crusade"
+    private static void addPattern(List<int[]> next, List<List<double[]>> out, String phrase, int mood, double weight) {
+        int node = 0;
+        boolean lastBreak = false;
+        String padded = " " + phrase.trim() + " ";
+        for (int i = 0; i < padded.length(); i++) {
+            int sym = symbol(padded.charAt(i));
+            if (sym < 0 || (sym == 0 && lastBreak)) continue;
+            lastBreak = sym == 0;
+            int child = next.get(node)[sym];
+            if (child == 0) {
+                child = next.size();
+                next.add(newRow());
+                out.add(new ArrayList<>());
+                next.get(node)[sym] = child;
+            }
+            node = child;
+        }
+        out.get(node).add(new double[] {mood, weight});
+    }
+
+    private static int[] newRow() {
+        return new int[ALPHABET];
+    }
+
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a' + 1;
+        if (c >= 'A' && c <= 'Z') return c - 'A' + 1;
+        if (c == '\'' || c == '’') return -1;
+        return 0;
+    }
+}
+
+/**
+ * Holds the live Catalog behind one volatile reference. Readers just call current() (no locks);
+ * reloads parse and index the new file on the watcher thread and swap it in with one write,
+ * so sessions keep serving the old version until the new one is completely ready.
+ */
+final class CatalogStore {
+    static final String DEFAULT_FILE = "catalog.txt";
+    private static final long SETTLE_MILLIS = 200; // editors often save in several writes
+
+    private volatile Catalog current;
+    private final Path file;  // null when running on the built-in catalog
+    private final AtomicLong versions = new AtomicLong(1);
+
+    CatalogStore(Catalog initial) {
+        this(initial, null);
+    }
+
+    private CatalogStore(Catalog initial, Path file) {
+        this.current = initial;
+        this.file = file;
+    }
+
+    // Loads the file when it exists, otherwise falls back to the built-in drinks
+    static CatalogStore open(Path file) throws IOException {
+        if (file == null || !Files.exists(file)) return new CatalogStore(Catalog.builtIn());
+        return new CatalogStore(Catalog.load(file, 1), file);
+    }
+
+    public Catalog current() { return current; }
+    public Path getFile() { return file; }
+
+    public Catalog reload() throws IOException {
+        if (file == null) return current;
+        Catalog next = Catalog.load(file, versions.incrementAndGet());
+        current = next;
+        return next;
+    }
+
+    // Reloads whenever the catalog file changes; a file that fails to parse leaves the old catalog live
+    public void watch() throws IOException {
+        if (file == null) return;
+        Path dir = file.toAbsolutePath().getParent();
+        WatchService watcher = dir.getFileSystem().newWatchService();
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+        Path name = file.getFileName();
+        Thread t = new Thread(() -> {
+            while (true) {
+                try {
+                    WatchKey key = watcher.take();
+                    boolean ours = false;
+                    for (WatchEvent<?> e : key.pollEvents()) {
+                        if (name.equals(e.context())) ours = true;
+                    }
+                    key.reset();
+                    if (!ours) continue;
+                    TimeUnit.MILLISECONDS.sleep(SETTLE_MILLIS);
+                    WatchKey more = watcher.poll();
+                    if (more != null) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    Catalog c = reload();
+                    System.err.println("Catalog reloaded from " + file + ": " + c.size() + " drinks (v" + c.getVersion() + ")");
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IOException e) {
+                    System.err.println("Catalog not reloaded, keeping the current menu: " + e.getMessage());
+                }
+            }
+        }, "catalog-watch");
+        t.setDaemon(true);
+        t.start();
+    }
+}
+
+/**
+ * A catalog compiled ahead of time into one binary file, for kiosks that restart often. The
+ * file is memory-mapped and read straight into a Catalog.Builder, with no text parsing and no
+ * menu rendering, since the rendered menu is stored too. Layout (big-endian): magic, format,
+ * drink count, then per drink key, name, price in centavos, emoji, type, mood, quote and the
+ * ingredients, then the menu text. Strings are a short byte length and UTF-8; the menu's
+ * length is an int.
+ */
+final class CatalogSnapshot {
+    static final String DEFAULT_FILE = "catalog.snap";
+    private static final int MAGIC = 0x53495043; // "SIPC"
+    private static final short FORMAT = 1;
+
+    private CatalogSnapshot() {}
+
+    public static void write(Catalog catalog, Path file) throws IOException {
+        RecipeCatalog recipes = catalog.getRecipes();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeShort(FORMAT);
+            out.writeInt(recipes.size());
+            for (int i = 0; i < recipes.size(); i++) {
+                Recipe r = recipes.at(i);
+                String mood = catalog.getMoodForKey(r.getKey());
+                writeString(out, r.getKey());
+                writeString(out, r.getName());
+                out.writeLong(catalog.getPriceForKey(r.getKey()).centavos());
+                writeString(out, catalog.getEmojiForKey(r.getKey()));
+                writeString(out, recipes.prototype(r.getKey()).getClass().getSimpleName());
+                writeString(out, mood == null ? "" : mood);
+                writeString(out, r.getDescription());
+                out.writeShort(r.getIngredients().size());
+                for (String ing : r.getIngredients()) writeString(out, ing);
+            }
+            byte[] menu = catalog.getRenderedMenu().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(menu.length);
+            out.write(menu);
+        }
+    }
+
+    // The snapshot, if there is one at least as new as the catalog file; otherwise null, and why on stderr
+    static CatalogStore open(Path snapshot, Path catalogFile) {
+        try {
+            if (!Files.exists(snapshot)) return null;
+            if (Files.exists(catalogFile)
+                    && Files.getLastModifiedTime(catalogFile).compareTo(Files.getLastModifiedTime(snapshot)) > 0) {
+                System.err.println(snapshot + " is older than " + catalogFile + ", so reading that instead (rerun build-kiosk.sh)");
+                return null;
+            }
+            return new CatalogStore(read(snapshot));
+        } catch (IOException e) {
+            System.err.println(e.getMessage() + "; reading " + catalogFile + " instead");
+            return null;
+        }
+    }
+
+    public static Catalog read(Path file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (buf.remaining() < 10 || buf.getInt() != MAGIC || buf.getShort() != FORMAT) {
+                throw new IOException(file + " is not a catalog snapshot (rebuild it with --write-snapshot)");
+            }
+            Catalog.Builder b = new Catalog.Builder();
+            int drinks = buf.getInt();
+            for (int i = 0; i < drinks; i++) {
+                String key = readString(buf);
+                String name = readString(buf);
+                long centavos = buf.getLong();
+                String emoji = readString(buf);
+                String type = readString(buf);
+                String mood = readString(buf);
+                String quote = readString(buf);
+                int count = length(buf, buf.getShort());
+                List<String> ingredients = new ArrayList<>(count);
+                for (int k = 0; k < count; k++) ingredients.add(readString(buf));
+                b.drink(key, name, centavos, emoji, type, mood, quote, ingredients);
+            }
+            byte[] menu = new byte[length(buf, buf.getInt())];
+            buf.get(menu);
+            b.renderedMenu(new String(menu, StandardCharsets.UTF_8));
+            return b.build(1);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException(file + " is damaged: " + e.getMessage());
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Short.MAX_VALUE) throw new IOException("catalog text too long for a snapshot");
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = new byte[length(buf, buf.getShort())];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // A stored length, checked against what's left so a damaged file fails as damaged
+    private static int length(ByteBuffer buf, int n) {
+        if (n < 0 || n > buf.remaining()) throw new IllegalArgumentException("bad length " + n + " at byte " + buf.position());
+        return n;
+    }
+}
+
+/**
+ * Time from the JVM starting to the first "Your sip choice:" prompt, the delay a kiosk customer
+ * actually waits through. Measured once per process.
+ */
+final class StartupClock {
+    private static final long MAIN_ENTERED = System.nanoTime();
+    private static volatile boolean reported;
+
+    private StartupClock() {}
+
+    // Called from the top of main so MAIN_ENTERED is set before any café work
+    static void mainEntered() {}
+
+    // The first prompt is up: records it, and prints it when asked to
+    static void firstPrompt(boolean print) {
+        if (reported) return;
+        reported = true;
+        long cafeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - MAIN_ENTERED);
+        // Read after the prompt is already on screen, so loading the MXBean doesn't delay it
+        long totalMillis = Math.max(cafeMillis, ManagementFactory.getRuntimeMXBean().getUptime());
+        CafeMetrics.shared().firstPrompt(totalMillis);
+        if (print) {
+            System.err.println("⏱ First prompt after " + totalMillis + " ms (" + (totalMillis - cafeMillis)
+                    + " ms starting Java, " + cafeMillis + " ms opening the café)");
+        }
+    }
+}
+
+class MoodAnalyzer {
+    private final CatalogStore catalog;
 
     public MoodAnalyzer() {
-        moodToDrinkKey = new HashMap<>();
-        supportedMoods = new ArrayList<>();
-        quoteByMood = new HashMap<>();
-        emojiByMood = new HashMap<>();
-        keyToMood = new HashMap<>();
-
-        register("distracted", "evergreen_iced_matcha", "Focus is simply the choice to return your attention, again and again.", "🍃");
-        register("sleepy", "misty_matcha_delight", "If you lack energy, start anyway. Consistency creates the momentum.", "🌙");
-        register("cranky", "frosted_matcha_frappe", "Pause. Your mood is a temporary state, not a permanent perspective.", "❄️");
-        register("overwhelmed", "comfort_matcha_latte", "Break the giant task into tiny, visible beginnings.", "🍵");
-        register("sluggish", "dream_matcha_smoothie", "Don't wait for motivation to arrive. Start moving, and it will catch up.", "🥭");
-        register("nostalgic", "caramel_memory_mocha", "Sip and remember — sweet moments never really fade.", "🍫");
-        register("heartbroken", "midnight_mocha_tears", "Even the bitter has its beauty — let it teach you to heal.", "💧");
-        register("hopeful", "sunrise_vanilla_bliss", "Every sunrise tastes like another chance to begin again.", "🌅");
-        register("reflective", "autumn_chai_calm", "Slow down — some thoughts are best brewed in silence.", "🍂");
-        register("joyful", "berry_bloom_blizz", "Let happiness bubble — you deserve to sparkle today.", "🍓");
-        register("bored", "mocha_mystery_mix", "Life’s too bland for dull flavors — stay curious!", "🌀");
-        register("inspired", "vanilla_dream_brew", "May every sip spark another idea worth chasing.", "🌸");
-        register("excited", "sparkling_strawberry", "You’re fizzing with life — let this match your thrill!", "✨");
-        register("lonely", "honey_warmth_milk", "A cup to remind you — you’re never alone.", "🐚");
-        register("anxious", "lavender_serenity_latte", "Let the aroma slow your thoughts and soothe your soul.", "💜");
-    }
-
-    private void register(String mood, String key, String quote, String emoji) {
-        moodToDrinkKey.put(mood.toLowerCase(), key);
-        keyToMood.put(key, mood.toLowerCase());
-        supportedMoods.add(mood.toLowerCase());
-        quoteByMood.put(mood.toLowerCase(), quote);
-        emojiByMood.put(mood.toLowerCase(), emoji);
-    }
-
-    public List<String> getSupportedMoods() { return new ArrayList<>(supportedMoods); }
-    public boolean hasMood(String m) { return m != null && moodToDrinkKey.containsKey(m.toLowerCase()); }
-    public String getQuoteForMood(String m) { return quoteByMood.getOrDefault(m.toLowerCase(), ""); }
-    public String getEmojiForMood(String m) { return emojiByMood.getOrDefault(m.toLowerCase(), ""); }
-    public String getKeyForMood(String mood) { return moodToDrinkKey.get(mood.toLowerCase()); }
-    public String getMoodForKey(String key) { return keyToMood.getOrDefault(key, null); }
+        this(new CatalogStore(Catalog.builtIn()));
+    }
+
+    public MoodAnalyzer(CatalogStore catalog) {
+        this.catalog = catalog;
+    }
+
+    public CatalogStore getCatalogStore() { return catalog; }
+
+    public List<String> getSupportedMoods() { return new ArrayList<>(catalog.current().getSupportedMoods()); }
+    public boolean hasMood(String m) { return m != null && catalog.current().getKeyForMood(m.toLowerCase()) != null; }
+    public String getQuoteForMood(String m) { return catalog.current().getQuoteForMood(m.toLowerCase()); }
+    public String getEmojiForMood(String m) { return catalog.current().getEmojiForMood(m.toLowerCase()); }
+    public String getKeyForMood(String mood) { return catalog.current().getKeyForMood(mood.toLowerCase()); }
+    public String getMoodForKey(String key) { return catalog.current().getMoodForKey(key); }
+
+    // Best-matching moods for a free-text feeling, e.g. "kind of tired and stressed"
+    public List<MoodClassifier.MoodMatch> classify(String text, int k) {
+        return catalog.current().getMoodClassifier().classify(text, k);
+    }
     public String getEmojiForKey(String key) {
-        String mood = keyToMood.get(key);
+        Catalog c = catalog.current();
+        String mood = c.getMoodForKey(key);
         if (mood == null) return "";
-        return emojiByMood.getOrDefault(mood, "");
+        return c.getEmojiForMood(mood);
     }
 
     // ADDED METHOD: Required by SipHappens.handleMoodFlow
@@ -561,107 +6212,12 @@ class MoodAnalyzer {
         return buildDrinkFromKey(key);
     }
 
-
+    // Shared, read-only drinks; use getRecipes().customize(key) for a copy you can change
     public Drink buildDrinkFromKey(String key) {
-        switch (key) {
-            case "evergreen_iced_matcha": {
-                Coffee c = new Coffee("Evergreen Iced Matcha");
-                c.addIngredient("matcha powder"); c.addIngredient("honey"); c.addIngredient("oat milk");
-                c.setDescription("Focus is simply the choice to return your attention, again and again.");
-                return c;
-            }
-            case "misty_matcha_delight": {
-                Coffee c = new Coffee("Misty Matcha Delight");
-                c.addIngredient("matcha powder"); c.addIngredient("honey"); c.addIngredient("oat milk"); c.addIngredient("espresso shot");
-                c.setDescription("If you lack energy, start anyway. Consistency creates the momentum.");
-                return c;
-            }
-            case "frosted_matcha_frappe": {
-                Coffee c = new Coffee("Frosted Matcha Frappe");
-                c.addIngredient("matcha powder"); c.addIngredient("honey"); c.addIngredient("oat milk"); c.addIngredient("whipped cream");
-                c.setDescription("Pause. Your mood is a temporary state, not a permanent perspective.");
-                return c;
-            }
-            case "comfort_matcha_latte": {
-                Coffee c = new Coffee("Comfort Matcha Latte");
-                c.addIngredient("matcha powder"); c.addIngredient("honey"); c.addIngredient("steamed oat milk");
-                c.setDescription("Break the giant task into tiny, visible beginnings.");
-                return c;
-            }
-            case "dream_matcha_smoothie": {
-                Smoothie s = new Smoothie("Dream Matcha Smoothie");
-                s.addIngredient("matcha powder"); s.addIngredient("honey"); s.addIngredient("oat milk"); s.addIngredient("frozen banana");
-                s.setDescription("Don't wait for motivation to arrive. Start moving, and it will catch up.");
-                return s;
-            }
-            case "caramel_memory_mocha": {
-                Coffee c = new Coffee("Caramel Memory Mocha");
-                c.addIngredient("espresso"); c.addIngredient("caramel syrup"); c.addIngredient("steamed milk"); c.addIngredient("whipped cream");
-                c.setDescription("Sip and remember — sweet moments never really fade.");
-                return c;
-            }
-            case "midnight_mocha_tears": {
-                Coffee c = new Coffee("Midnight Mocha Tears");
-                c.addIngredient("dark chocolate"); c.addIngredient("espresso"); c.addIngredient("sea salt"); c.addIngredient("milk foam");
-                c.setDescription("Even the bitter has its beauty — let it teach you to heal.");
-                return c;
-            }
-            case "sunrise_vanilla_bliss": {
-                Smoothie s = new Smoothie("Sunrise Vanilla Bliss");
-                s.addIngredient("vanilla"); s.addIngredient("honey"); s.addIngredient("oat milk"); s.addIngredient("dash of cinnamon");
-                s.setDescription("Every sunrise tastes like another chance to begin again.");
-                return s;
-            }
-            case "autumn_chai_calm": {
-                Tea t = new Tea("Autumn Chai Calm");
-                t.addIngredient("chai spices"); t.addIngredient("black tea"); t.addIngredient("milk"); t.addIngredient("nutmeg");
-                t.setDescription("Slow down — some thoughts are best brewed in silence.");
-                return t;
-            }
-            case "berry_bloom_blizz": {
-                Smoothie s = new Smoothie("Berry Bloom Blizz");
-                s.addIngredient("strawberry"); s.addIngredient("raspberry"); s.addIngredient("soda water"); s.addIngredient("mint leaves");
-                s.setDescription("Let happiness bubble — you deserve to sparkle today.");
-                return s;
-            }
-            case "mocha_mystery_mix": {
-                Coffee c = new Coffee("Mocha Mystery Mix");
-                c.addIngredient("espresso"); c.addIngredient("cocoa"); c.addIngredient("choco flakes");
-                c.setDescription("Life’s too bland for dull flavors — stay curious!");
-                return c;
-            }
-            case "vanilla_dream_brew": {
-                Smoothie s = new Smoothie("Vanilla Dream Brew");
-                s.addIngredient("vanilla"); s.addIngredient("almond milk"); s.addIngredient("cinnamon dust");
-                s.setDescription("May every sip spark another idea worth chasing.");
-                return s;
-            }
-            case "sparkling_strawberry": {
-                Elixir e = new Elixir("Sparkling Strawberry ");
-                e.addIngredient("strawberry syrup"); e.addIngredient("soda water"); e.addIngredient("mint");
-                e.setDescription("You’re fizzing with life — let this match your thrill!");
-                return e;
-            }
-            case "honey_warmth_milk": {
-                Elixir e = new Elixir("Honey Warmth Milk");
-                e.addIngredient("milk"); e.addIngredient("honey"); e.addIngredient("cinnamon");
-                e.setDescription("A cup to remind you — you’re never alone.");
-                return e;
-            }
-            case "lavender_serenity_latte": {
-                Coffee c = new Coffee("Lavender Serenity Latte");
-                c.addIngredient("lavender syrup"); c.addIngredient("steamed milk"); c.addIngredient("vanilla");
-                c.setDescription("Let the aroma slow your thoughts and soothe your soul.");
-                return c;
-            }
-            default: {
-                Tea defaultTea = new Tea("House Tea");
-                defaultTea.addIngredient("water");
-                defaultTea.setDescription("A simple sip.");
-                return defaultTea;
-            }
-        }
+        return catalog.current().getRecipes().prototype(key);
     }
+
+    public RecipeCatalog getRecipes() { return catalog.current().getRecipes(); }
 }
 
 